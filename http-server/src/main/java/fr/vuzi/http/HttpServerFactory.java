@@ -0,0 +1,38 @@
+package fr.vuzi.http;
+
+import fr.vuzi.http.impl.HttpServer;
+import fr.vuzi.http.impl.nio.HttpNioServer;
+
+import java.util.Properties;
+
+/**
+ * Create the server implementation selected by the properties file
+ */
+public class HttpServerFactory {
+
+    /**
+     * Create and configure the server using the "server.engine" property : "blocking" (default) for a thread per
+     * connection, or "nio" for selector loops
+     * @param properties The properties to use
+     * @return The configured server
+     * @throws Exception If the engine is unknown, or if the configuration is invalid
+     */
+    public static IHttpServer create(Properties properties) throws Exception {
+        String engine = ((String) properties.getOrDefault("server.engine", "blocking")).trim();
+        IHttpServer server;
+
+        switch (engine) {
+            case "blocking":
+                server = new HttpServer();
+                break;
+            case "nio":
+                server = new HttpNioServer();
+                break;
+            default:
+                throw new Exception("Unknown server engine " + engine);
+        }
+
+        server.configure(properties);
+        return server;
+    }
+}
@@ -20,7 +20,7 @@ public interface IHttpServer {
     void setHostRouter(IHttpHostRouter hostRouter);
 
     /**
-     * Start the server on the specified port
+     * Start the server on the specified port, and on the ports of the virtual hosts
      */
     void run(int port);
 
@@ -0,0 +1,85 @@
+package fr.vuzi.http.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Brotli compression, using the Brotli4j codec when it is on the classpath. The codec is optional, so it is looked
+ * up by reflection, and Brotli is simply not offered to the clients when it is missing
+ */
+public class BrotliEncoder {
+
+    private static Logger logger = Logger.getLogger(BrotliEncoder.class.getCanonicalName());
+
+    private static final Constructor<?> parametersConstructor;
+    private static final Method setQuality;
+    private static final Constructor<?> streamConstructor;
+
+    static {
+        Constructor<?> parameters = null;
+        Method quality = null;
+        Constructor<?> stream = null;
+
+        try {
+            Class<?> loaderClass = Class.forName("com.aayushatharva.brotli4j.Brotli4jLoader");
+            Class<?> parametersClass = Class.forName("com.aayushatharva.brotli4j.encoder.Encoder$Parameters");
+            Class<?> streamClass = Class.forName("com.aayushatharva.brotli4j.encoder.BrotliOutputStream");
+
+            // Loads the native library of the platform
+            if((Boolean) loaderClass.getMethod("isAvailable").invoke(null)) {
+                parameters = parametersClass.getConstructor();
+                quality = parametersClass.getMethod("setQuality", int.class);
+                stream = streamClass.getConstructor(OutputStream.class, parametersClass);
+            } else {
+                logger.log(Level.WARNING, "Brotli codec not available on this platform",
+                        (Throwable) loaderClass.getMethod("getUnavailabilityCause").invoke(null));
+            }
+        } catch (ClassNotFoundException e) {
+            // Optional codec not on the classpath
+        } catch (ReflectiveOperationException | LinkageError e) {
+            logger.log(Level.WARNING, "Brotli codec could not be loaded", e);
+            parameters = null;
+            quality = null;
+            stream = null;
+        }
+
+        parametersConstructor = parameters;
+        setQuality = quality;
+        streamConstructor = stream;
+    }
+
+    /**
+     * Return true if the Brotli codec is available
+     * @return True if Brotli can be used
+     */
+    public static boolean isAvailable() {
+        return streamConstructor != null;
+    }
+
+    /**
+     * Wrap the provided stream in a Brotli compressing stream
+     * @param outputStream The stream receiving the compressed data
+     * @param quality The compression quality, from 0 (fastest) to 11 (smallest)
+     * @return The compressing stream
+     * @throws IOException If the codec is not available or failed
+     */
+    public static OutputStream encode(OutputStream outputStream, int quality) throws IOException {
+        if(!isAvailable())
+            throw new IOException("Brotli codec not available");
+
+        try {
+            Object parameters = setQuality.invoke(parametersConstructor.newInstance(), quality);
+
+            return (OutputStream) streamConstructor.newInstance(outputStream, parameters);
+        } catch (InvocationTargetException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package fr.vuzi.http.compression;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Pool of deflaters of the same level and format. A deflater allocates its native state and window (about 256Ko)
+ * when created, so they are reset and reused instead of being created for each response
+ */
+public class DeflaterPool {
+
+    private final int level;
+    private final boolean nowrap;
+    private final int maxSize;
+
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Create a new pool
+     * @param level The compression level, from 1 to 9
+     * @param nowrap True for raw deflate data (gzip), false for the zlib format (deflate content coding)
+     * @param maxSize The max number of idle deflaters kept
+     */
+    public DeflaterPool(int level, boolean nowrap, int maxSize) {
+        this.level = level;
+        this.nowrap = nowrap;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return an idle deflater, or a new one if none is available
+     * @return The deflater
+     */
+    public Deflater acquire() {
+        Deflater deflater = deflaters.poll();
+
+        if(deflater == null)
+            return new Deflater(level, nowrap);
+
+        size.decrementAndGet();
+        return deflater;
+    }
+
+    /**
+     * Return a deflater to the pool, or release its native state if the pool is full
+     * @param deflater The deflater
+     */
+    public void release(Deflater deflater) {
+        if(size.incrementAndGet() > maxSize) {
+            size.decrementAndGet();
+            deflater.end();
+            return;
+        }
+
+        deflater.reset();
+        deflaters.offer(deflater);
+    }
+}
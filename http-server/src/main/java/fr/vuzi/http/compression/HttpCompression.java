@@ -0,0 +1,163 @@
+package fr.vuzi.http.compression;
+
+import fr.vuzi.http.request.HttpEncoding;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Compression of the responses : choice of the encoding among the ones accepted by the client, and encoding of the
+ * bodies. Only the bodies of the allowed MIME types and above the minimum size are compressed, as already compressed
+ * formats (images, archives, PDF...) and small bodies would only cost CPU. The deflaters are pooled
+ */
+public class HttpCompression {
+
+    private static Logger logger = Logger.getLogger(HttpCompression.class.getCanonicalName());
+
+    public static final String DEFAULT_TYPES = "text/*, application/javascript, application/json, application/xml, " +
+            "application/xhtml+xml, application/rss+xml, application/atom+xml, application/wasm, image/svg+xml, " +
+            "image/x-icon, font/ttf, font/otf";
+
+    private static final HttpCompression defaultCompression =
+            new HttpCompression(6, HttpEncoding.DEFAULT_BROTLI_QUALITY, 1024, DEFAULT_TYPES, "br, gzip, deflate", 64);
+
+    private final int brotliQuality;
+    private final long minSize;
+
+    private final Set<String> types = new HashSet<>();
+    private final List<String> typePrefixes = new ArrayList<>();
+    private final List<HttpEncoding> encodings = new ArrayList<>();
+
+    private final DeflaterPool gzipPool;
+    private final DeflaterPool deflatePool;
+
+    /**
+     * Create a new compression configuration
+     * @param level The gzip and deflate compression level, from 1 (fastest) to 9 (smallest)
+     * @param brotliQuality The Brotli compression quality, from 0 (fastest) to 11 (smallest)
+     * @param minSize The size under which bodies of known length are not compressed, in bytes
+     * @param types The compressed MIME types, comma separated, with wildcards like text/*
+     * @param encodings The encodings offered, comma separated and by order of preference (br, gzip, deflate)
+     * @param poolSize The max number of idle deflaters kept per encoding
+     */
+    public HttpCompression(int level, int brotliQuality, long minSize, String types, String encodings, int poolSize) {
+        this.brotliQuality = brotliQuality;
+        this.minSize = minSize;
+
+        for(String type : types.split(",")) {
+            type = type.trim().toLowerCase();
+
+            if(type.endsWith("/*"))
+                typePrefixes.add(type.substring(0, type.length() - 1));
+            else if(!type.isEmpty())
+                this.types.add(type);
+        }
+
+        for(String encoding : encodings.split(",")) {
+            encoding = encoding.trim().toLowerCase();
+
+            for(HttpEncoding encodingType : HttpEncoding.values()) {
+                if(encoding.equals(encodingType.headerName)) {
+                    if(encodingType.isAvailable())
+                        this.encodings.add(encodingType);
+                    else
+                        logger.warning("Encoding " + encoding + " not available, its codec is missing");
+                }
+            }
+        }
+
+        this.gzipPool = new DeflaterPool(level, true, poolSize);
+        this.deflatePool = new DeflaterPool(level, false, poolSize);
+    }
+
+    /**
+     * Return the compression used when none is configured
+     * @return The default compression
+     */
+    public static HttpCompression getDefault() {
+        return defaultCompression;
+    }
+
+    /**
+     * Return true if the bodies of the provided MIME type should be compressed
+     * @param contentType The Content-Type header value, may be null
+     * @return True if the type is compressible
+     */
+    public boolean isCompressible(String contentType) {
+        if(contentType == null)
+            return false;
+
+        int parameters = contentType.indexOf(';');
+        String type = (parameters >= 0 ? contentType.substring(0, parameters) : contentType).trim().toLowerCase();
+
+        if(types.contains(type))
+            return true;
+
+        for(String prefix : typePrefixes) {
+            if(type.startsWith(prefix))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return true if a body of the provided type and length may be sent with the encoding
+     * @param encodingType The encoding
+     * @param contentType The Content-Type header value, may be null
+     * @param length The body length, in bytes
+     * @return True if the encoding is offered and the body is compressible
+     */
+    public boolean allows(HttpEncoding encodingType, String contentType, long length) {
+        return length >= minSize && encodings.contains(encodingType) && isCompressible(contentType);
+    }
+
+    /**
+     * Return the encoding of a body
+     * @param acceptedEncoding The Accept-Encoding header value, may be null
+     * @param length The body length, or a negative value if unknown
+     * @return The encoding to use, or NONE
+     */
+    public HttpEncoding negotiate(String acceptedEncoding, long length) {
+        if(length >= 0 && length < minSize)
+            return HttpEncoding.NONE;
+
+        return HttpEncoding.negotiate(acceptedEncoding, encodings);
+    }
+
+    /**
+     * Return the encodings offered, by order of preference
+     * @return The encodings
+     */
+    public List<HttpEncoding> getEncodings() {
+        return Collections.unmodifiableList(encodings);
+    }
+
+    /**
+     * Wrap the provided stream in an encoded stream, using the configured level and the pooled deflaters
+     * @param encodingType The encoding
+     * @param outputStream The stream to be encoded
+     * @param syncFlush True to send all the data written so far when the encoded stream is flushed
+     * @return The encoding stream, or the provided stream is no encoding is defined
+     * @throws IOException
+     */
+    public OutputStream encode(HttpEncoding encodingType, OutputStream outputStream, boolean syncFlush)
+            throws IOException {
+        switch (encodingType) {
+            case GZIP:
+                return new PooledDeflaterOutputStream(outputStream, gzipPool, true, syncFlush);
+            case DEFLATE:
+                return new PooledDeflaterOutputStream(outputStream, deflatePool, false, syncFlush);
+            case BROTLI:
+                return BrotliEncoder.encode(outputStream, brotliQuality);
+            default:
+                return encodingType.encodeOutputStream(outputStream, syncFlush);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package fr.vuzi.http.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Output stream compressing with a deflater borrowed from a pool, in the gzip or the zlib (deflate content coding)
+ * format. The deflater is returned to the pool when the stream is closed or aborted
+ */
+public class PooledDeflaterOutputStream extends DeflaterOutputStream {
+
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private final DeflaterPool pool;
+    private final CRC32 crc;
+
+    private boolean closed = false;
+
+    /**
+     * Create a new compressing stream
+     * @param outputStream The stream receiving the compressed data
+     * @param pool The pool of the deflater, producing raw data for gzip
+     * @param gzip True for the gzip format, false for the zlib format
+     * @param syncFlush True to send all the data written so far when the stream is flushed
+     * @throws IOException
+     */
+    public PooledDeflaterOutputStream(OutputStream outputStream, DeflaterPool pool, boolean gzip, boolean syncFlush)
+            throws IOException {
+        super(outputStream, pool.acquire(), 8192, syncFlush);
+        this.pool = pool;
+        this.crc = gzip ? new CRC32() : null;
+
+        if(gzip)
+            out.write(GZIP_HEADER);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+
+        if(crc != null)
+            crc.update(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed)
+            return;
+
+        closed = true;
+
+        try {
+            finish();
+
+            if(crc != null) {
+                // Written at once, so it is not split into tiny chunks
+                byte[] trailer = new byte[8];
+                writeInt(trailer, 0, (int) crc.getValue());
+                writeInt(trailer, 4, (int) def.getBytesRead());
+                out.write(trailer);
+            }
+        } finally {
+            pool.release(def);
+        }
+
+        out.close();
+    }
+
+    /**
+     * Release the deflater without ending the compressed data, when the body can't be written entirely. The
+     * underlying stream is left as is, so the truncated body is not mistaken for a complete one
+     */
+    public void abort() {
+        if(closed)
+            return;
+
+        closed = true;
+        pool.release(def);
+    }
+
+    /**
+     * Write an int in little endian, as in the gzip trailer
+     */
+    private static void writeInt(byte[] b, int off, int value) {
+        b[off] = (byte) value;
+        b[off + 1] = (byte) (value >>> 8);
+        b[off + 2] = (byte) (value >>> 16);
+        b[off + 3] = (byte) (value >>> 24);
+    }
+}
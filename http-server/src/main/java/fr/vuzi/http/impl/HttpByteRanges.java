@@ -0,0 +1,261 @@
+package fr.vuzi.http.impl;
+
+import fr.vuzi.http.request.HttpEncoding;
+import fr.vuzi.http.request.IHttpResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Byte ranges of a Range request, resolved against the length of the requested content
+ */
+public class HttpByteRanges {
+
+    private static final int MAX_RANGES = 16;
+
+    private final long length;
+    private final List<long[]> ranges;
+
+    private HttpByteRanges(long length, List<long[]> ranges) {
+        this.length = length;
+        this.ranges = ranges;
+    }
+
+    /**
+     * Parse the value of a Range header
+     * @param header The Range header value, may be null
+     * @param length The length of the content
+     * @return The ranges, or null if the header is missing or should be ignored
+     */
+    public static HttpByteRanges parse(String header, long length) {
+        if(header == null || !header.startsWith("bytes="))
+            return null;
+
+        String[] specs = header.substring(6).split(",");
+        if(specs.length > MAX_RANGES)
+            return null; // Too many ranges, the whole content is cheaper
+
+        List<long[]> ranges = new ArrayList<>();
+
+        try {
+            for(String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+
+                if(dash < 0)
+                    return null;
+
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                long start, end;
+
+                if(first.isEmpty()) {
+                    // Suffix range
+                    long suffix = Long.parseLong(last);
+                    if(suffix <= 0)
+                        continue;
+
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(first);
+                    end = length - 1;
+
+                    if(!last.isEmpty()) {
+                        long lastByte = Long.parseLong(last);
+                        if(lastByte < start)
+                            return null; // Invalid range, the header is ignored
+
+                        end = Math.min(lastByte, end);
+                    }
+                }
+
+                if(start <= end && start < length)
+                    ranges.add(new long[] { start, end });
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        return new HttpByteRanges(length, ranges);
+    }
+
+    /**
+     * Return true if at least one of the ranges overlaps the content
+     * @return True if the ranges can be served
+     */
+    public boolean isSatisfiable() {
+        return !ranges.isEmpty();
+    }
+
+    public boolean isMultipart() {
+        return ranges.size() > 1;
+    }
+
+    public long getStart(int i) {
+        return ranges.get(i)[0];
+    }
+
+    public long getLength(int i) {
+        return ranges.get(i)[1] - ranges.get(i)[0] + 1;
+    }
+
+    /**
+     * Answer with a 416 status, the ranges not matching the content
+     * @param response The response
+     */
+    public void reject(IHttpResponse response) {
+        response.setStatus(416);
+        response.setHeader("Content-Range", "bytes */" + length);
+        response.setBody(new byte[0]);
+    }
+
+    /**
+     * Set the status and the headers of a single range response. The body is set by the caller
+     * @param response The response
+     */
+    public void accept(IHttpResponse response) {
+        response.setStatus(206);
+        response.setEncodingType(HttpEncoding.NONE); // Ranges apply to the identity content
+        response.setHeader("Content-Range", getContentRange(0));
+    }
+
+    /**
+     * Answer with a multipart/byteranges body, each part being read from the provided source
+     * @param response The response
+     * @param contentType The content type of the parts
+     * @param source The source of the parts
+     * @param release Closed once the body is sent, may be null
+     */
+    public void acceptMultipart(IHttpResponse response, String contentType, RangeSource source, Closeable release)
+            throws IOException {
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        List<InputStream> parts = new ArrayList<>();
+        long bodyLength = 0;
+
+        for(int i = 0; i < ranges.size(); i++) {
+            byte[] head = ("\r\n--" + boundary + "\r\n" +
+                    "Content-Type: " + contentType + "\r\n" +
+                    "Content-Range: " + getContentRange(i) + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+            parts.add(new ByteArrayInputStream(head));
+            parts.add(source.open(getStart(i), getLength(i)));
+            bodyLength += head.length + getLength(i);
+        }
+
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        parts.add(new ByteArrayInputStream(end));
+        bodyLength += end.length;
+
+        response.setStatus(206);
+        response.setEncodingType(HttpEncoding.NONE);
+        response.setHeader("Content-Type", "multipart/byteranges; boundary=" + boundary);
+        response.setHeader("Content-Length", String.valueOf(bodyLength));
+        response.setBody(new SequenceInputStream(Collections.enumeration(parts)) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if(release != null)
+                        release.close();
+                }
+            }
+        });
+    }
+
+    private String getContentRange(int i) {
+        return "bytes " + ranges.get(i)[0] + "-" + ranges.get(i)[1] + "/" + length;
+    }
+
+    /**
+     * Source of the content parts. The streams are opened when the response is built, so opening should be cheap
+     */
+    public interface RangeSource {
+        InputStream open(long start, long length) throws IOException;
+    }
+
+    /**
+     * Return a source reading the file with positioned reads, leaving the channel position untouched
+     * @param channel The file channel
+     * @return The source
+     */
+    public static RangeSource of(FileChannel channel) {
+        return (start, length) -> new InputStream() {
+            private long position = start;
+            private final long end = start + length;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if(position >= end)
+                    return -1;
+
+                int byteRead = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+                if(byteRead < 0)
+                    throw new IOException("File shorter than expected");
+
+                position += byteRead;
+                return byteRead;
+            }
+        };
+    }
+
+    /**
+     * Return a source reading the buffer, without modifying it
+     * @param buffer The content buffer
+     * @return The source
+     */
+    public static RangeSource of(ByteBuffer buffer) {
+        return (start, length) -> {
+            ByteBuffer part = slice(buffer, start, length);
+
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return part.hasRemaining() ? part.get() & 0xFF : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if(!part.hasRemaining())
+                        return -1;
+
+                    len = Math.min(len, part.remaining());
+                    part.get(b, off, len);
+                    return len;
+                }
+            };
+        };
+    }
+
+    /**
+     * Return a view of a region of the buffer
+     * @param buffer The content buffer
+     * @param start The region start, relative to the buffer position
+     * @param length The region length
+     * @return The region view
+     */
+    public static ByteBuffer slice(ByteBuffer buffer, long start, long length) {
+        ByteBuffer part = buffer.duplicate();
+        part.position(buffer.position() + (int) start);
+        part.limit(part.position() + (int) length);
+
+        return part;
+    }
+}
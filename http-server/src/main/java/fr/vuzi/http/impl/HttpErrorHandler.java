@@ -15,6 +15,7 @@ public class HttpErrorHandler implements IHttpErrorHandler {
 
     @Override
     public void handleError(HttpException error, IHttpRequest request, IHttpResponse response) {
+        boolean written = false;
 
         try {
             if(response.headerSent()) {
@@ -25,6 +26,17 @@ public class HttpErrorHandler implements IHttpErrorHandler {
             }
 
             response.setStatus(error.getErrorCode());
+
+            // The connection is not reused after an error, unless the server allowed it
+            if(!"keep-alive".equals(response.getHeaders().get("connection")))
+                response.setHeader("Connection", "close");
+
+            // Headers describing the body the service was about to send
+            response.getHeaders().remove("content-length");
+            response.getHeaders().remove("transfer-encoding");
+            response.getHeaders().remove("content-encoding");
+            response.getHeaders().remove("content-range");
+
             response.setBody(
                     "<html>" +
                             "<head>" +
@@ -38,11 +50,16 @@ public class HttpErrorHandler implements IHttpErrorHandler {
                             "</body>" +
                             "</html>");
             response.write();
+            written = true;
         } catch (Exception e) {
             logger.log(Level.WARNING, "Error during the error handling", e);
+            response.setHeader("Connection", "close");
         } finally {
             try {
-                response.getOutputStream().close();
+                if(written && "keep-alive".equals(response.getHeaders().get("connection")))
+                    response.getOutputStream().flush();
+                else
+                    response.getOutputStream().close();
             } catch (IOException e) {}
         }
     }
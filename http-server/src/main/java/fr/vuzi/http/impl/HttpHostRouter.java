@@ -7,24 +7,113 @@ import java.util.HashMap;
 import java.util.Map;
 
 /**
- * Default host router implementation
+ * Default host router implementation. Hostnames are stored in a trie of their labels, from the top-level domain to
+ * the leftmost label, so the resolution cost only depends on the number of labels of the requested hostname. Are
+ * supported :
+ * <ul>
+ *     <li>exact names, like www.example.com</li>
+ *     <li>wildcards, like *.example.com, matching any subdomain of example.com</li>
+ *     <li>suffixes, like .example.com, matching example.com and any of its subdomains</li>
+ *     <li>the default host *, matching any hostname</li>
+ * </ul>
+ * The most specific match is used, and names are case insensitive. Hosts can be bound to a single port, in which case
+ * they are preferred to the hosts of any port
  */
 public class HttpHostRouter implements IHttpHostRouter {
 
-    private Map<String, IHttpRouter> routes = new HashMap<>();
+    private static final int ANY_PORT = -1;
+
+    private Map<Integer, Node> roots = new HashMap<>();
 
     @Override
     public void addRoute(String hostname, IHttpRouter router) {
-        routes.put(hostname, router);
+        addRoute(hostname, ANY_PORT, router);
+    }
+
+    @Override
+    public void addRoute(String hostname, int port, IHttpRouter router) {
+        Node node = roots.computeIfAbsent(port <= 0 ? ANY_PORT : port, p -> new Node());
+        hostname = normalize(hostname);
+
+        if(hostname.equals("*")) {
+            node.wildcard = router;
+            return;
+        }
+
+        boolean wildcard = hostname.startsWith("*.");
+        boolean suffix = hostname.startsWith(".");
+        String[] labels = (wildcard ? hostname.substring(2) : suffix ? hostname.substring(1) : hostname).split("\\.");
+
+        for(int i = labels.length - 1; i >= 0; i--)
+            node = node.children.computeIfAbsent(labels[i], l -> new Node());
+
+        if(wildcard || suffix)
+            node.wildcard = router;
+        if(!wildcard)
+            node.exact = router;
     }
 
     @Override
     public IHttpRouter resolve(String hostname) {
-        IHttpRouter router = routes.get(hostname);
+        return resolve(hostname, ANY_PORT);
+    }
+
+    @Override
+    public IHttpRouter resolve(String hostname, int port) {
+        IHttpRouter router = null;
+        Node portRoot = roots.get(port);
+
+        if(portRoot != null)
+            router = resolve(portRoot, hostname);
 
-        if(router == null)
-            router = routes.get("*"); // Try default fallback
+        if(router == null && port != ANY_PORT && roots.containsKey(ANY_PORT))
+            router = resolve(roots.get(ANY_PORT), hostname);
 
         return router;
     }
+
+    private IHttpRouter resolve(Node node, String hostname) {
+        IHttpRouter router = node.wildcard; // Default fallback
+
+        if(hostname == null)
+            return router;
+
+        hostname = normalize(hostname);
+        int end = hostname.length();
+
+        // Walk the labels from the last one, keeping the deepest wildcard
+        while(end > 0) {
+            int start = hostname.lastIndexOf('.', end - 1) + 1;
+            node = node.children.get(hostname.substring(start, end));
+
+            if(node == null)
+                return router;
+
+            if(start == 0)
+                return node.exact != null ? node.exact : router;
+
+            if(node.wildcard != null)
+                router = node.wildcard;
+
+            end = start - 1;
+        }
+
+        return router;
+    }
+
+    private static String normalize(String hostname) {
+        hostname = hostname.trim().toLowerCase();
+
+        return hostname.endsWith(".") ? hostname.substring(0, hostname.length() - 1) : hostname;
+    }
+
+    /**
+     * Node of the trie, for a label of the hostnames
+     */
+    private static class Node {
+        private final Map<String, Node> children = new HashMap<>();
+
+        private IHttpRouter exact;
+        private IHttpRouter wildcard;
+    }
 }
@@ -0,0 +1,67 @@
+package fr.vuzi.http.impl;
+
+/**
+ * Load shedding following CoDel : the time spent by the requests in the queue is compared to a target, and requests
+ * are only shed once it stayed above the target for a whole interval, so bursts are absorbed by the queue. While
+ * shedding, the time between two shed requests decreases with the inverse square root of the number of shed
+ * requests, until the queueing delay is back under the target
+ */
+public class HttpLoadShedder {
+
+    private final long target;
+    private final long interval;
+
+    private long firstAboveTime = 0;
+    private long shedNext = 0;
+    private int count = 0;
+    private boolean shedding = false;
+
+    /**
+     * Create a new load shedder
+     * @param target The acceptable queueing delay, in ms
+     * @param interval The time the delay must stay above the target before shedding, in ms
+     */
+    public HttpLoadShedder(long target, long interval) {
+        this.target = target * 1000000;
+        this.interval = interval * 1000000;
+    }
+
+    /**
+     * Check if a request leaving the queue should be shed
+     * @param queuedAt The time the request entered the queue, in ns
+     * @return True if the request should be rejected
+     */
+    public synchronized boolean shouldShed(long queuedAt) {
+        long now = System.nanoTime();
+
+        if(now - queuedAt < target) {
+            firstAboveTime = 0;
+            shedding = false;
+            return false;
+        }
+
+        if(!shedding) {
+            if(firstAboveTime == 0) {
+                firstAboveTime = now + interval;
+                return false;
+            }
+
+            if(now - firstAboveTime < 0)
+                return false;
+
+            // Resume at a rate close to the previous one if the last shedding stopped recently
+            shedding = true;
+            count = count > 2 && now - shedNext < 8 * interval ? count - 2 : 1;
+            shedNext = now + (long) (interval / Math.sqrt(count));
+            return true;
+        }
+
+        if(now - shedNext >= 0) {
+            count++;
+            shedNext += (long) (interval / Math.sqrt(count));
+            return true;
+        }
+
+        return false;
+    }
+}
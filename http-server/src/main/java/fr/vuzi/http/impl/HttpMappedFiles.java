@@ -0,0 +1,205 @@
+package fr.vuzi.http.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Memory mapped files, shared by the concurrent requests. A file is mapped once, and its mapping is reference
+ * counted : when the file changes the mapping is replaced, and the old one is unmapped once the last response using
+ * it is written. The least recently used mappings are dropped the same way when over the file or size limits
+ */
+public class HttpMappedFiles {
+
+    private static Logger logger = Logger.getLogger(HttpMappedFiles.class.getCanonicalName());
+
+    private final long checkInterval;
+    private final int maxFiles;
+    private final long maxSize;
+
+    private final LinkedHashMap<String, MappedFile> files = new LinkedHashMap<>(64, 0.75f, true);
+    private long size = 0;
+
+    /**
+     * Create a new mapped file set
+     * @param checkInterval The minimum delay between two modification checks of a file, in ms
+     * @param maxFiles The max number of mapped files
+     * @param maxSize The max total size of the mapped files, in bytes
+     */
+    public HttpMappedFiles(long checkInterval, int maxFiles, long maxSize) {
+        this.checkInterval = checkInterval;
+        this.maxFiles = maxFiles;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return the mapping of the file, mapping it if needed. The mapping must be released once used
+     * @param resource The file
+     * @return The acquired mapping, or null if the file can't be mapped
+     * @throws IOException If the file could not be mapped
+     */
+    public MappedFile acquire(File resource) throws IOException {
+        String key = resource.getPath();
+        long now = System.currentTimeMillis();
+
+        synchronized (files) {
+            MappedFile file = files.get(key);
+
+            if(file != null) {
+                if(now - file.checkedAt >= checkInterval) {
+                    if(resource.lastModified() == file.lastModified && resource.length() == file.length) {
+                        file.checkedAt = now;
+                    } else {
+                        // Changed file, drop the mapping reference
+                        remove(key);
+                        file = null;
+                    }
+                }
+
+                if(file != null && file.retain())
+                    return file;
+            }
+
+            long lastModified = resource.lastModified();
+            long length = resource.length();
+
+            if(!resource.isFile() || length > Integer.MAX_VALUE)
+                return null;
+
+            try(FileChannel channel = FileChannel.open(resource.toPath(), StandardOpenOption.READ)) {
+                file = new MappedFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, length), lastModified, length,
+                        now);
+            }
+
+            files.put(key, file);
+            size += length;
+            file.retain();
+
+            evict();
+
+            return file;
+        }
+    }
+
+    /**
+     * Drop the least recently used mappings until under the limits. Mappings still used by responses are unmapped
+     * once released
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, MappedFile>> iterator = files.entrySet().iterator();
+
+        while((files.size() > maxFiles || size > maxSize) && files.size() > 1 && iterator.hasNext()) {
+            MappedFile file = iterator.next().getValue();
+            iterator.remove();
+
+            size -= file.length;
+            file.close();
+        }
+    }
+
+    private void remove(String key) {
+        MappedFile file = files.remove(key);
+
+        if(file != null) {
+            size -= file.length;
+            file.close();
+        }
+    }
+
+    /**
+     * Shared mapping of a file. The mapping holds a reference on itself until it is replaced, and each request holds
+     * one until its response is written
+     */
+    public static class MappedFile implements Closeable {
+        private final MappedByteBuffer buffer;
+        private final long lastModified;
+        private final long length;
+
+        private final AtomicInteger references = new AtomicInteger(1);
+        private volatile long checkedAt;
+
+        MappedFile(MappedByteBuffer buffer, long lastModified, long length, long checkedAt) {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.checkedAt = checkedAt;
+        }
+
+        /**
+         * Return a new view of the mapping, to be used by a single response
+         * @return The mapped content
+         */
+        public ByteBuffer getContent() {
+            return buffer.duplicate();
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Acquire a reference
+         * @return False if the mapping is already released
+         */
+        private boolean retain() {
+            int count;
+
+            do {
+                count = references.get();
+                if(count <= 0)
+                    return false;
+            } while(!references.compareAndSet(count, count + 1));
+
+            return true;
+        }
+
+        /**
+         * Release a reference, unmapping the file after the last one
+         */
+        @Override
+        public void close() {
+            if(references.decrementAndGet() == 0)
+                unmap(buffer);
+        }
+    }
+
+    /**
+     * Unmap the buffer without waiting for its garbage collection. The JDK doesn't expose it, so this is best
+     * effort : on failure, the mapping is released with the buffer
+     * @param buffer The mapped buffer
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            try {
+                // Java 8
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object instance = cleaner.invoke(buffer);
+                instance.getClass().getMethod("clean").invoke(instance);
+            } catch (Exception e2) {
+                logger.log(Level.FINE, "Unmapping failed", e2);
+            }
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Unmapping failed", e);
+        }
+    }
+}
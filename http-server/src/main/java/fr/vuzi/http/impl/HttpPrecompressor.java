@@ -0,0 +1,191 @@
+package fr.vuzi.http.impl;
+
+import fr.vuzi.http.compression.BrotliEncoder;
+import fr.vuzi.http.compression.HttpCompression;
+import fr.vuzi.http.request.HttpEncoding;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generation of the precompressed siblings of the static files (file.gz, and file.br when the Brotli codec is
+ * available) at the maximum compression level, so the files don't need to be compressed when requested. The missing
+ * or outdated siblings are generated by a background thread, scanning the directory once or periodically
+ */
+public class HttpPrecompressor implements Runnable {
+
+    private static Logger logger = Logger.getLogger(HttpPrecompressor.class.getCanonicalName());
+
+    /** Encodings of the siblings, by order of preference */
+    static final List<HttpEncoding> ENCODINGS = Arrays.asList(HttpEncoding.BROTLI, HttpEncoding.GZIP);
+
+    private static final int BROTLI_MAX_QUALITY = 11;
+
+    private final File folderPath;
+    private final HttpCompression compression;
+    private final long minSize;
+    private final long interval;
+
+    // Files not worth compressing, with their modification date. Only used by the scanning thread
+    private final Map<String, Long> skipped = new HashMap<>();
+
+    /**
+     * Create a new precompressor
+     * @param folderPath The static directory
+     * @param types The compressed MIME types, comma separated, with wildcards like text/*
+     * @param minSize The size under which files are not compressed, in bytes
+     * @param interval The delay between two scans in ms, or 0 to only scan once
+     */
+    public HttpPrecompressor(File folderPath, String types, long minSize, long interval) {
+        this.folderPath = folderPath;
+        this.compression = new HttpCompression(Deflater.BEST_COMPRESSION, BROTLI_MAX_QUALITY, minSize, types, "", 0);
+        this.minSize = minSize;
+        this.interval = interval;
+    }
+
+    /**
+     * Return the sibling of a file holding its encoded content
+     * @param resource The file
+     * @param encodingType The encoding, gzip or Brotli
+     * @return The sibling file, which may not exist
+     */
+    static File getSibling(File resource, HttpEncoding encodingType) {
+        return new File(resource.getPath() + (encodingType == HttpEncoding.BROTLI ? ".br" : ".gz"));
+    }
+
+    /**
+     * Return true if the sibling exists, and is not older than the file
+     * @param sibling The sibling file
+     * @param resource The file
+     * @return True if the sibling can be used
+     */
+    static boolean isUpToDate(File sibling, File resource) {
+        long lastModified = sibling.lastModified(); // 0 if missing
+
+        return lastModified > 0 && lastModified >= resource.lastModified();
+    }
+
+    /**
+     * Start the scanning thread
+     */
+    public void start() {
+        Thread thread = new Thread(() -> {
+            do {
+                run();
+
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            } while(interval > 0);
+        }, "http-precompressor");
+
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Scan the directory, generating the missing and outdated siblings
+     */
+    @Override
+    public void run() {
+        List<Path> paths;
+
+        try(Stream<Path> walk = Files.walk(folderPath.toPath())) {
+            paths = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Static directory scan failed", e);
+            return;
+        }
+
+        int generated = 0;
+
+        for(Path path : paths) {
+            File resource = path.toFile();
+            String name = resource.getName();
+
+            if(name.endsWith(".gz") || name.endsWith(".br") || resource.length() < minSize)
+                continue;
+
+            Long skippedVersion = skipped.get(resource.getPath());
+            if(skippedVersion != null && skippedVersion == resource.lastModified())
+                continue;
+
+            try {
+                if(!compression.isCompressible(Files.probeContentType(Paths.get(name))))
+                    continue;
+
+                for(HttpEncoding encodingType : ENCODINGS) {
+                    if(encodingType.isAvailable() && !isUpToDate(getSibling(resource, encodingType), resource) &&
+                            generate(resource, encodingType))
+                        generated++;
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, String.format("Precompression of %s failed", resource.getPath()), e);
+            }
+        }
+
+        if(generated > 0)
+            logger.info(String.format("%d precompressed files generated in %s", generated, folderPath.getPath()));
+    }
+
+    /**
+     * Compress the file into its sibling, through a temporary file so the sibling is never read partially written
+     * @return True if the sibling was generated, false if the compression is not worth it
+     */
+    private boolean generate(File resource, HttpEncoding encodingType) throws IOException {
+        File sibling = getSibling(resource, encodingType);
+        long lastModified = resource.lastModified();
+        Path temporary = Files.createTempFile(resource.getParentFile().toPath(), ".precompress", ".tmp");
+
+        try {
+            try(OutputStream out = encode(Files.newOutputStream(temporary), encodingType)) {
+                Files.copy(resource.toPath(), out);
+            }
+
+            // Modified while compressed, wait for the next scan
+            if(resource.lastModified() != lastModified)
+                return false;
+
+            // Only keep the compressed variant if it is worth it
+            if(Files.size(temporary) >= resource.length() * 0.9) {
+                skipped.put(resource.getPath(), lastModified);
+                return false;
+            }
+
+            Files.move(temporary, sibling.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static OutputStream encode(OutputStream out, HttpEncoding encodingType) throws IOException {
+        if(encodingType == HttpEncoding.BROTLI)
+            return BrotliEncoder.encode(out, BROTLI_MAX_QUALITY);
+
+        return new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        };
+    }
+}
@@ -2,9 +2,11 @@ package fr.vuzi.http.impl;
 
 import fr.vuzi.http.error.HttpException;
 import fr.vuzi.http.request.HttpCookie;
+import fr.vuzi.http.request.HttpMessageReader;
 import fr.vuzi.http.request.HttpUtils;
 import fr.vuzi.http.request.IHttpRequest;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -31,12 +33,14 @@ public class HttpRequest implements IHttpRequest {
     private Map<String, String> parameters;
 
     private byte[] body;
+    private InputStream bodyStream;
 
     /**
      * Default constructor where the provided stream is read and analysed to get all the request information
      * @param in The input stream
      */
     public HttpRequest(InputStream in) {
+        this();
         this.inputStream = in;
     }
 
@@ -51,7 +55,10 @@ public class HttpRequest implements IHttpRequest {
 
     @Override
     public void read() throws HttpException, IOException {
-        HttpUtils.RequestParser.parse(this, inputStream);
+        // Buffered connection parsed in place, or a stream read through its own reader
+        HttpMessageReader reader = inputStream instanceof HttpMessageReader ? (HttpMessageReader) inputStream :
+                new HttpMessageReader(inputStream);
+        reader.readRequest(this);
 
         parameters = new HashMap<>();
 
@@ -59,14 +66,17 @@ public class HttpRequest implements IHttpRequest {
     }
 
     /**
-     * Guess the hostname from the "host" header
+     * Guess the hostname from the "host" header, in lower case and without the port
      */
     private void guessHostname() {
         hostname = headers.get("host");
         if(hostname != null) {
-            int portPos = hostname.indexOf(":");
+            // IPv6 addresses are enclosed in brackets
+            int portPos = hostname.indexOf(":", hostname.startsWith("[") ? hostname.indexOf("]") : 0);
             if(portPos > 0)
                 hostname = hostname.substring(0, portPos);
+
+            hostname = hostname.trim().toLowerCase();
         }
     }
 
@@ -131,13 +141,31 @@ public class HttpRequest implements IHttpRequest {
     }
 
     @Override
-    public byte[] getBody() {
+    public byte[] getBody() throws HttpException, IOException {
+        if(body == null)
+            body = bodyStream != null ? HttpUtils.readBody(bodyStream) : new byte[0];
+
         return body;
     }
 
     @Override
     public void setBody(byte[] body) {
         this.body = body;
+        this.bodyStream = null;
+    }
+
+    @Override
+    public InputStream getBodyStream() {
+        if(body != null)
+            return new ByteArrayInputStream(body); // Already buffered
+
+        return bodyStream != null ? bodyStream : new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public void setBodyStream(InputStream bodyStream) {
+        this.bodyStream = bodyStream;
+        this.body = null;
     }
 
     @Override
@@ -1,16 +1,28 @@
 package fr.vuzi.http.impl;
 
+import fr.vuzi.http.compression.HttpCompression;
+import fr.vuzi.http.compression.PooledDeflaterOutputStream;
+import fr.vuzi.http.metrics.HttpMetrics;
+import fr.vuzi.http.request.ChunkedOutputStream;
+import fr.vuzi.http.request.ContentLengthInputStream;
+import fr.vuzi.http.request.HttpDate;
 import fr.vuzi.http.request.HttpEncoding;
+import fr.vuzi.http.request.HttpUtils;
 import fr.vuzi.http.request.IHttpRequest;
 import fr.vuzi.http.request.IHttpResponse;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * IHttpResponse implementation
@@ -19,6 +31,7 @@ public class HttpResponse implements IHttpResponse {
 
     private static Logger logger = Logger.getLogger(HttpResponse.class.getCanonicalName());
     private final Socket socket;
+    private final HttpCompression compression;
 
     private IHttpRequest request;
     private boolean headerSend = false;
@@ -34,15 +47,36 @@ public class HttpResponse implements IHttpResponse {
     private byte[] body;
     private InputStream bodyInput;
 
+    private FileChannel bodyChannel;
+    private long bodyPosition;
+    private long bodyLength;
+
+    private ByteBuffer bodyBuffer;
+    private Closeable bodyRelease;
+
+    private BodyOutputStream bodyStream;
+
     /**
      * Default constructor
      * @param request Request, used to automatically determine response elements
      * @param outputStream Thew output stream where to write
      */
     public HttpResponse(IHttpRequest request, OutputStream outputStream, Socket socket) {
+        this(request, outputStream, socket, HttpCompression.getDefault());
+    }
+
+    /**
+     * Constructor with the compression configuration of the server
+     * @param request Request, used to automatically determine response elements
+     * @param outputStream Thew output stream where to write
+     * @param compression The compression of the bodies, or null to never compress them automatically
+     */
+    public HttpResponse(IHttpRequest request, OutputStream outputStream, Socket socket,
+                        HttpCompression compression) {
         this.request = request;
         this.socket = socket;
         this.outputStream = outputStream;
+        this.compression = compression;
     }
 
     /**
@@ -50,6 +84,7 @@ public class HttpResponse implements IHttpResponse {
      */
     public HttpResponse() {
         this.socket = null;
+        this.compression = HttpCompression.getDefault();
     }
 
     @Override
@@ -94,68 +129,317 @@ public class HttpResponse implements IHttpResponse {
 
     @Override
     public void setBody(byte[] value) {
+        releaseBody();
         this.body = value;
     }
 
     @Override
     public void setBody(String value) {
-        this.body = value.getBytes();
+        setBody(value.getBytes());
+    }
+
+    @Override
+    public void setBody(FileChannel channel, long position, long length) {
+        releaseBody();
+        this.bodyChannel = channel;
+        this.bodyPosition = position;
+        this.bodyLength = length;
+    }
+
+    @Override
+    public void setBody(ByteBuffer buffer) {
+        setBody(buffer, null);
     }
 
+    @Override
+    public void setBody(ByteBuffer buffer, Closeable release) {
+        releaseBody();
+        this.bodyBuffer = buffer.duplicate();
+        this.bodyRelease = release;
+    }
 
     @Override
     public void write() throws IOException {
+        // Streamed body, only end it
+        if(bodyStream != null) {
+            bodyStream.close();
+            return;
+        }
+
         if(headerSend)
             throw new IOException("Header already sent");
 
-        // Body compression
-        if(encodingType == HttpEncoding.AUTO)
-            encodingType = detectEncodingToUse();
+        boolean hasBody = hasBody();
 
-        if(encodingType.headerName != null)
-            setHeader("Content-Encoding", encodingType.headerName);
+        // Body compression
+        chooseEncoding(hasBody, body != null ? body.length : bodyChannel != null ? bodyLength :
+                bodyBuffer != null ? bodyBuffer.remaining() : -1);
 
-        // Body stream
+        // Body stream. File regions are only read through a stream if they need to be encoded
         if(body != null) {
             bodyInput = new ByteArrayInputStream(body);
+        } else if(bodyChannel != null && encodingType != HttpEncoding.NONE) {
+            bodyInput = new ContentLengthInputStream(Channels.newInputStream(bodyChannel.position(bodyPosition)),
+                    bodyLength);
+        }
+
+        // Body framing. Answers to HEAD requests announce the length the body would have
+        if(hasBody || isHeadRequest()) {
+            if(encodingType != HttpEncoding.NONE)
+                headers.remove("content-length"); // Length is unknown once encoded
+            else if(body != null)
+                setHeader("Content-Length", String.valueOf(body.length));
+            else if(bodyChannel != null)
+                setHeader("Content-Length", String.valueOf(bodyLength));
+            else if(bodyBuffer != null)
+                setHeader("Content-Length", String.valueOf(bodyBuffer.remaining()));
+            else if(bodyInput == null)
+                setHeader("Content-Length", "0");
+        }
+
+        boolean chunked = hasBody && frameUnknownLength();
+
+        writeHead();
+
+        // Body
+        try {
+            if(hasBody && bodyBuffer != null && encodingType == HttpEncoding.NONE) {
+                writeBuffer();
+            } else if(hasBody && bodyInput == null && bodyChannel != null) {
+                writeChannel();
+            } else if(hasBody) {
+                OutputStream bodyOutput = encode(
+                        chunked ? new ChunkedOutputStream(outputStream) : new UnclosableOutputStream(outputStream),
+                        false);
+                boolean complete = false;
+
+                try {
+                    if(bodyBuffer != null)
+                        HttpUtils.copy(bodyBuffer, bodyOutput);
+                    else if(bodyInput != null)
+                        HttpUtils.copy(bodyInput, bodyOutput);
+
+                    bodyOutput.close();
+                    complete = true;
+                } finally {
+                    // The pooled deflater is given back, without ending the truncated body
+                    if(!complete && bodyOutput instanceof PooledDeflaterOutputStream)
+                        ((PooledDeflaterOutputStream) bodyOutput).abort();
+                }
+            }
+        } finally {
+            releaseBody();
         }
 
-        // Writer
-        BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(outputStream));
+        outputStream.flush();
+    }
+
+    @Override
+    public OutputStream startBody() throws IOException {
+        if(headerSend)
+            throw new IOException("Header already sent");
+
+        releaseBody();
+
+        boolean hasBody = hasBody();
+
+        // Body compression, unless the service announced the length
+        if(headers.containsKey("content-length"))
+            encodingType = HttpEncoding.NONE;
+
+        chooseEncoding(hasBody, -1);
+
+        boolean chunked = hasBody && frameUnknownLength();
+
+        writeHead();
+
+        // The encoder flushes everything written so far, so the client receives the data when the service flushes
+        OutputStream bodyOutput;
+        if(hasBody)
+            bodyOutput = encode(chunked ? new ChunkedOutputStream(outputStream) :
+                    new UnclosableOutputStream(outputStream), true);
+        else
+            bodyOutput = new UnclosableOutputStream(new DiscardOutputStream(outputStream));
+
+        bodyStream = new BodyOutputStream(bodyOutput);
+
+        return bodyStream;
+    }
+
+    @Override
+    public Writer startBody(Charset charset) throws IOException {
+        return new OutputStreamWriter(startBody(), charset);
+    }
+
+    /**
+     * Give back the encoder of a streamed body that won't be ended, the service having failed after starting it
+     */
+    void abortBody() {
+        if(bodyStream != null)
+            bodyStream.abort();
+    }
+
+    /**
+     * Choose the encoding of the body, if not set by the service : the body is compressed if its type and length
+     * allow it, with the preferred encoding accepted by the client
+     * @param hasBody True if the response has a body
+     * @param length The body length, or a negative value if unknown
+     */
+    private void chooseEncoding(boolean hasBody, long length) {
+        if(encodingType == HttpEncoding.AUTO && compression != null && !headers.containsKey("content-encoding") &&
+                compression.isCompressible(headers.get("content-type"))) {
+            // The response depends on the accepted encodings, even when not compressed
+            addVary("Accept-Encoding");
+
+            if(hasBody)
+                encodingType = compression.negotiate(request.getHeader("Accept-Encoding"), length);
+        }
+
+        if(!hasBody || encodingType == HttpEncoding.AUTO)
+            encodingType = HttpEncoding.NONE;
+
+        if(encodingType.headerName != null) {
+            setHeader("Content-Encoding", encodingType.headerName);
+
+            // The encoded representation has its own entity tag, weak as the encoded bytes depend on the level
+            String etag = headers.get("etag");
+            if(etag != null)
+                setHeader("ETag", encodingType.encodeWeakETag(etag));
+        }
+    }
+
+    /**
+     * Add a header name to the Vary header
+     * @param name The header name
+     */
+    private void addVary(String name) {
+        String vary = headers.get("vary");
+
+        if(vary == null || vary.isEmpty())
+            setHeader("Vary", name);
+        else if(!vary.toLowerCase().contains(name.toLowerCase()) && !vary.trim().equals("*"))
+            setHeader("Vary", vary + ", " + name);
+    }
+
+    /**
+     * Wrap the provided stream in a stream applying the body encoding
+     * @param bodyOutput The stream receiving the encoded body
+     * @param syncFlush True to send all the data written so far when the encoded stream is flushed
+     * @return The encoding stream
+     * @throws IOException
+     */
+    private OutputStream encode(OutputStream bodyOutput, boolean syncFlush) throws IOException {
+        if(compression != null)
+            return compression.encode(encodingType, bodyOutput, syncFlush);
+
+        return encodingType.encodeOutputStream(bodyOutput, syncFlush);
+    }
+
+    /**
+     * Frame a body of unknown length, using the content length or the transfer encoding if set by the service,
+     * else a chunked transfer encoding (HTTP/1.1) or the closing of the connection (HTTP/1.0)
+     * @return True if the body should be written with the chunked encoding
+     */
+    private boolean frameUnknownLength() {
+        if(headers.containsKey("content-length") || headers.containsKey("transfer-encoding"))
+            return false;
+
+        if(request != null && "HTTP/1.1".equals(request.getProtocol())) {
+            setHeader("Transfer-Encoding", "chunked");
+            return true;
+        }
+
+        setHeader("Connection", "close"); // The end of the body is signaled by closing the connection
+        return false;
+    }
+
+    /**
+     * Write the status line and the headers
+     * @throws IOException
+     */
+    private void writeHead() throws IOException {
+        if(!headers.containsKey("date"))
+            setHeader("Date", HttpDate.now());
 
         // Response
-        bufferedWriter.write( protocol + " " +
-                              status   + " " +
-                             (textStatus != null ? textStatus : getTextStatusFor(status)) + "\r\n");
+        StringBuilder head = new StringBuilder();
+        head.append(protocol).append(' ')
+            .append(status).append(' ')
+            .append(textStatus != null ? textStatus : getTextStatusFor(status)).append("\r\n");
 
         // Headers
         for(Map.Entry<String, String> header : headers.entrySet()) {
-            bufferedWriter.write(header.getKey() + ": " + header.getValue() + "\r\n");
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
         }
-        bufferedWriter.write("\r\n");
-        bufferedWriter.flush();
+        head.append("\r\n");
+        outputStream.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
 
         headerSend = true;
+    }
 
-        // Body
-        outputStream = encodingType.encodeOutputStream(outputStream);
+    /**
+     * Write the body file region. When the connection is backed by a socket channel, the file is sent with
+     * transferTo, letting the system copy it without going through the heap
+     * @throws IOException
+     */
+    private void writeChannel() throws IOException {
+        WritableByteChannel target = socket != null ? socket.getChannel() : null;
+
+        if(target == null) {
+            // No channel, copy through the stream
+            HttpUtils.copy(new ContentLengthInputStream(Channels.newInputStream(bodyChannel.position(bodyPosition)),
+                    bodyLength), outputStream);
+            return;
+        }
 
-        if(bodyInput != null) {
-            byte[] buffer = new byte[1024];
-            int byteRead;
+        outputStream.flush(); // Headers first
 
-            while((byteRead = bodyInput.read(buffer)) > 0) {
-                outputStream.write(buffer, 0, byteRead);
-            }
+        long position = bodyPosition;
+        long remaining = bodyLength;
+
+        while(remaining > 0) {
+            long byteSent = bodyChannel.transferTo(position, remaining, target);
+            if(byteSent <= 0)
+                throw new IOException("File shorter than expected");
 
-            outputStream.flush();
-            outputStream.close();
+            HttpMetrics.getInstance().addBytesSent(byteSent);
+            position += byteSent;
+            remaining -= byteSent;
+        }
+    }
+
+    /**
+     * Write the body buffer. When the connection is backed by a socket channel, the buffer is written directly to
+     * the channel, avoiding any copy for direct buffers
+     * @throws IOException
+     */
+    private void writeBuffer() throws IOException {
+        WritableByteChannel target = socket != null ? socket.getChannel() : null;
 
-            bodyInput.close();
+        if(target == null) {
+            HttpUtils.copy(bodyBuffer, outputStream);
+            return;
         }
 
-        logger.log(Level.INFO, String.format("(%d) %s -> %s %s",
-                getStatus(), request.getMethod(), request.getHostname(), request.getLocation()));
+        outputStream.flush(); // Headers first
+
+        while(bodyBuffer.hasRemaining())
+            HttpMetrics.getInstance().addBytesSent(target.write(bodyBuffer));
+    }
+
+    /**
+     * Return true if the response should have a body, according to its status and the request method
+     * @return True if a body should be sent
+     */
+    private boolean hasBody() {
+        if(status < 200 || status == 204 || status == 304)
+            return false;
+
+        return !isHeadRequest();
+    }
+
+    private boolean isHeadRequest() {
+        return request != null && "HEAD".equals(request.getMethod());
     }
 
     @Override
@@ -170,27 +454,34 @@ public class HttpResponse implements IHttpResponse {
 
     @Override
     public void setBody(InputStream inputStream) {
+        releaseBody();
         this.bodyInput = inputStream;
     }
 
-    public InputStream getBody() {
-        return bodyInput;
-    }
-
-    private HttpEncoding detectEncodingToUse() {
-        String acceptedEncoding = request.getHeader("Accept-Encoding");
-
-        if(acceptedEncoding == null)
-            return HttpEncoding.NONE;
-
-        acceptedEncoding = acceptedEncoding.toLowerCase();
-
-        for(HttpEncoding encodingType : HttpEncoding.values()) {
-            if(encodingType.headerName != null && acceptedEncoding.contains(encodingType.headerName))
-                return encodingType;
+    /**
+     * Close and forget the current body
+     */
+    private void releaseBody() {
+        try {
+            if(bodyInput != null)
+                bodyInput.close();
+            if(bodyChannel != null)
+                bodyChannel.close();
+            if(bodyRelease != null)
+                bodyRelease.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Body closing failed", e);
         }
 
-        return HttpEncoding.NONE;
+        body = null;
+        bodyInput = null;
+        bodyChannel = null;
+        bodyBuffer = null;
+        bodyRelease = null;
+    }
+
+    public InputStream getBody() {
+        return bodyInput;
     }
 
     /**
@@ -202,6 +493,11 @@ public class HttpResponse implements IHttpResponse {
         this.encodingType = encodingType;
     }
 
+    @Override
+    public HttpCompression getCompression() {
+        return compression;
+    }
+
     /**
      * Return the text status for the provided status code
      * @param status The status code
@@ -211,18 +507,129 @@ public class HttpResponse implements IHttpResponse {
         switch (status) {
             case 200:
                 return "OK";
+            case 206:
+                return "Partial Content";
             case 304:
                 return "Not Modified";
             case 404:
                 return "Not Found";
             case 400:
                 return "Bad Request";
+            case 405:
+                return "Method Not Allowed";
+            case 411:
+                return "Length Required";
+            case 413:
+                return "Payload Too Large";
+            case 416:
+                return "Range Not Satisfiable";
+            case 431:
+                return "Request Header Fields Too Large";
             case 500:
                 return "Server Error";
+            case 502:
+                return "Bad Gateway";
+            case 503:
+                return "Service Unavailable";
+            case 504:
+                return "Gateway Timeout";
             default:
                 return "Error Unknown";
         }
     }
 
+    /**
+     * Streamed body, buffering the small writes so they don't each produce a chunk. Closing it ends the body, and
+     * can be done by both the service and the server
+     */
+    private static class BodyOutputStream extends BufferedOutputStream {
+
+        private boolean closed = false;
+
+        BodyOutputStream(OutputStream outputStream) {
+            super(outputStream, 8192);
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if(closed)
+                throw new IOException("Body already ended");
+
+            super.write(b);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if(closed)
+                throw new IOException("Body already ended");
+
+            super.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if(!closed)
+                super.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if(closed)
+                return;
+
+            flush();
+            closed = true;
+            out.close();
+        }
+
+        /**
+         * End the body without sending the buffered data, giving back the pooled deflater if any
+         */
+        synchronized void abort() {
+            if(closed)
+                return;
+
+            closed = true;
+            if(out instanceof PooledDeflaterOutputStream)
+                ((PooledDeflaterOutputStream) out).abort();
+        }
+    }
 
+    /**
+     * Output stream ignoring the written data, for responses without body, but flushing the connection
+     */
+    private static class DiscardOutputStream extends FilterOutputStream {
+
+        DiscardOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    /**
+     * Output stream wrapper flushing instead of closing, to keep the connection open after the body
+     */
+    private static class UnclosableOutputStream extends FilterOutputStream {
+
+        UnclosableOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
 }
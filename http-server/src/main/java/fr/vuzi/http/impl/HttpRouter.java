@@ -24,6 +24,41 @@ public class HttpRouter implements IHttpRouter {
         routes.add(new HttpRoute(method, pattern, values, service));
     }
 
+    @Override
+    public void addRoute(HttpMethod method, String template, IHttpService service) {
+        StringBuilder regex = new StringBuilder("^");
+        List<String> values = new ArrayList<>();
+        int position = 0;
+
+        // Translate the template into a regex, with a capture group per parameter
+        while(position < template.length()) {
+            int start = template.indexOf('{', position);
+            int end = start < 0 ? -1 : template.indexOf('}', start);
+
+            if(end < 0) {
+                regex.append(Pattern.quote(template.substring(position)));
+                break;
+            }
+
+            if(start > position)
+                regex.append(Pattern.quote(template.substring(position, start)));
+
+            String name = template.substring(start + 1, end);
+            if(name.endsWith("*")) {
+                values.add(name.substring(0, name.length() - 1));
+                regex.append("([^?]*)");
+            } else {
+                values.add(name);
+                regex.append("([^/?]+)");
+            }
+
+            position = end + 1;
+        }
+
+        regex.append("(?:\\?.*)?$");
+        routes.add(new HttpRoute(method, Pattern.compile(regex.toString()), values.toArray(new String[0]), service));
+    }
+
     @Override
     public IHttpService resolve(IHttpRequest request) {
         for(HttpRoute route : routes) {
@@ -1,24 +1,41 @@
 package fr.vuzi.http.impl;
 
 import fr.vuzi.http.IHttpServer;
+import fr.vuzi.http.compression.HttpCompression;
 import fr.vuzi.http.error.HttpException;
 import fr.vuzi.http.error.IHttpErrorHandler;
+import fr.vuzi.http.log.HttpAccessLog;
+import fr.vuzi.http.metrics.CountingInputStream;
+import fr.vuzi.http.metrics.CountingOutputStream;
+import fr.vuzi.http.metrics.HttpMetrics;
+import fr.vuzi.http.request.HttpMessageReader;
 import fr.vuzi.http.request.IHttpRequest;
-import fr.vuzi.http.request.IHttpResponse;
 import fr.vuzi.http.route.HttpMethod;
 import fr.vuzi.http.route.IHttpHostRouter;
 import fr.vuzi.http.route.IHttpRouter;
 import fr.vuzi.http.service.IHttpService;
 
+import fr.vuzi.thread.IThreadPool;
+import fr.vuzi.thread.RejectedActionException;
+import fr.vuzi.thread.RejectionPolicy;
 import fr.vuzi.thread.ThreadPool;
+import fr.vuzi.thread.VirtualThreadPool;
+import fr.vuzi.thread.WorkStealingThreadPool;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -26,7 +43,7 @@ import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
- * HTTP server default implementation. Port not working
+ * HTTP server default implementation, using blocking sockets and a thread per connection. Port not working
  */
 public class HttpServer implements IHttpServer {
 
@@ -34,25 +51,138 @@ public class HttpServer implements IHttpServer {
     private IHttpErrorHandler defaultErrorHandler = new HttpErrorHandler();
     private IHttpHostRouter hostRouter;
 
+    private static final long MAX_SKIPPED_BODY = 65536; // 64Ko
+    private static final long MAX_LINGER_DISCARD = 1048576; // 1Mo
+    private static final int LINGER_TIMEOUT = 1000;
+    private static final long ACCEPT_MIN_BACKOFF = 10;
+    private static final long ACCEPT_MAX_BACKOFF = 1000;
+    private static final int KEEPALIVE_CHECK_INTERVAL = 100;
+
     private int port = 8080;
 
+    protected Set<Integer> ports = new LinkedHashSet<>();
+
+    protected int acceptors = 1;
+    protected int backlog = 1024;
+    protected boolean reusePort = false;
+    protected boolean tcpNoDelay = true;
+    protected int sendBuffer = 0;
+    protected int receiveBuffer = 0;
+
+    protected int keepAliveTimeout = 5000;
+    protected int keepAliveMaxRequests = 100;
+    protected int keepAliveBusyTimeout = 0;
+    protected int workers = 16;
+    protected String poolType = "priority";
+    protected IThreadPool pool;
+    protected int virtualMaxRunning = 0;
+
+    protected int queueCapacity = 1024;
+    protected RejectionPolicy rejectionPolicy = RejectionPolicy.ABORT;
+    protected HttpLoadShedder loadShedder;
+    protected int retryAfter = 1;
+
+    protected HttpMetrics metrics = HttpMetrics.getInstance();
+    private Map<IHttpService, HttpMetrics.RouteMetrics> routeMetrics = new IdentityHashMap<>();
+    private HttpMetrics.RouteMetrics unroutedMetrics = metrics.getRouteMetrics("", "");
+
+    protected HttpAccessLog accessLog;
+
+    protected HttpCompression compression = HttpCompression.getDefault();
+
     @Override
     public void configure(Properties properties) throws Exception {
         hostRouter = new HttpHostRouter();
 
         try {
+            // Persistent connections
+            keepAliveTimeout = Integer.valueOf((String) properties.getOrDefault("server.keepalive.timeout", "5000"));
+            keepAliveMaxRequests = Integer.valueOf((String) properties.getOrDefault("server.keepalive.max", "100"));
+            // Idle timeout (ms) while connections wait for a worker, 0 to close the idle connections right away
+            keepAliveBusyTimeout = Integer.valueOf((String) properties.getOrDefault("server.keepalive.busy_timeout",
+                    "0"));
+
+            // Request processing threads
+            workers = Integer.valueOf((String) properties.getOrDefault("server.workers", "16"));
+            poolType = ((String) properties.getOrDefault("server.pool", "priority")).trim();
+            // Max running actions of the virtual pool (connections with the blocking engine), 0 for no limit
+            virtualMaxRunning = Integer.valueOf((String) properties.getOrDefault("server.pool.virtual.max", "0"));
+
+            // Admission control : max waiting connections (or requests with the nio engine), answered with a 503 when
+            // the queue is full
+            queueCapacity = Integer.valueOf((String) properties.getOrDefault("server.queue.capacity", "1024"));
+            rejectionPolicy = RejectionPolicy.valueOf(((String) properties.getOrDefault("server.queue.rejection",
+                    "abort")).trim().toUpperCase().replace('-', '_'));
+
+            // The submitting thread is the accepting thread or a selector loop, which must never serve a connection
+            // or block on a request
+            if(rejectionPolicy == RejectionPolicy.CALLER_RUNS) {
+                logger.warning("Rejection policy caller-runs not supported by the server, abort used instead");
+                rejectionPolicy = RejectionPolicy.ABORT;
+            }
+
+            // Load shedding when the queueing delay stays above the target (ms) for an interval (ms)
+            if(Boolean.valueOf((String) properties.getOrDefault("server.shedding", "true"))) {
+                loadShedder = new HttpLoadShedder(
+                        Long.valueOf((String) properties.getOrDefault("server.shedding.target", "50")),
+                        Long.valueOf((String) properties.getOrDefault("server.shedding.interval", "500")));
+            }
+            retryAfter = Integer.valueOf((String) properties.getOrDefault("server.shedding.retry_after", "1"));
+
+            // Listening sockets : accept threads per port, each on its own socket if SO_REUSEPORT is enabled and
+            // available, pending connections queue, and options of the accepted sockets (0 for the system default)
+            acceptors = Integer.valueOf((String) properties.getOrDefault("server.acceptors", "1"));
+            backlog = Integer.valueOf((String) properties.getOrDefault("server.backlog", "1024"));
+            reusePort = Boolean.valueOf((String) properties.getOrDefault("server.reuseport", "false"));
+            tcpNoDelay = Boolean.valueOf((String) properties.getOrDefault("server.socket.tcp_nodelay", "true"));
+            sendBuffer = Integer.valueOf((String) properties.getOrDefault("server.socket.send_buffer", "0"));
+            receiveBuffer = Integer.valueOf((String) properties.getOrDefault("server.socket.receive_buffer", "0"));
+
+            // Access log, written by a background thread (disabled without file) : line format, records waiting to
+            // be written before dropping, rotation size (bytes, 0 to never rotate) and rotated files kept
+            String accessLogPath = ((String) properties.getOrDefault("server.accesslog", "")).trim();
+            if(!accessLogPath.isEmpty()) {
+                accessLog = new HttpAccessLog(accessLogPath,
+                        ((String) properties.getOrDefault("server.accesslog.format", "common")).trim(),
+                        Integer.valueOf((String) properties.getOrDefault("server.accesslog.buffer", "8192")),
+                        Long.valueOf((String) properties.getOrDefault("server.accesslog.rotate.size", "0")),
+                        Integer.valueOf((String) properties.getOrDefault("server.accesslog.rotate.files", "5")),
+                        Long.valueOf((String) properties.getOrDefault("server.accesslog.interval", "100")));
+                metrics.registerGauge("http_access_log_dropped", "Access log records dropped", accessLog::getDropped);
+            }
+
+            // Compression of the responses : gzip and deflate level (1-9), Brotli quality (0-11, needs the Brotli4j
+            // codec), minimum body size (bytes), compressed MIME types, and offered encodings by order of preference
+            if(Boolean.valueOf((String) properties.getOrDefault("server.compression", "true"))) {
+                compression = new HttpCompression(
+                        Integer.valueOf((String) properties.getOrDefault("server.compression.level", "6")),
+                        Integer.valueOf((String) properties.getOrDefault("server.compression.brotli.quality", "4")),
+                        Long.valueOf((String) properties.getOrDefault("server.compression.min_size", "1024")),
+                        (String) properties.getOrDefault("server.compression.types", HttpCompression.DEFAULT_TYPES),
+                        (String) properties.getOrDefault("server.compression.encodings", "br, gzip, deflate"),
+                        Integer.valueOf((String) properties.getOrDefault("server.compression.pool", "64")));
+            } else {
+                compression = null;
+            }
+
+            // Route resolution : "tree" (radix tree) or "regex" (linear scan)
+            boolean treeRouter = !"regex".equals(((String) properties.getOrDefault("server.router", "tree")).trim());
+
             // Get all the virtual host names
             String[] vhostsNames = ((String) properties.getOrDefault("vhosts", "*")).split(",");
 
             // For each virtual host, get all its information
             for(String vhostName : vhostsNames) {
-                IHttpRouter router = new HttpRouter();
+                IHttpRouter router = treeRouter ? new HttpTreeRouter() : new HttpRouter();
 
                 vhostName = vhostName.trim();
 
-                // Host information
+                // Host information, the host being served on any port if none is specified
                 String hostname = (String) properties.getOrDefault(vhostName + ".path", "*");
-                int port = Integer.valueOf(((String) properties.getOrDefault(vhostName + ".port", "80")));
+                int port = Integer.valueOf(((String) properties.getOrDefault(vhostName + ".port", "-1")).trim());
+
+                if(port > 0)
+                    ports.add(port);
 
                 // Services of the virtual host
                 String[] servicesNames = ((String) properties.getOrDefault(vhostName + ".services", "*")).split(",");
@@ -61,8 +191,9 @@ public class HttpServer implements IHttpServer {
                 for(String serviceName : servicesNames) {
                     String servicePropertyKey = vhostName + ".services." + serviceName.trim();
 
-                    // Get the route
+                    // Get the route, as a regex or as a path template
                     String route = (String) properties.getOrDefault(servicePropertyKey + ".route", "");
+                    String template = (String) properties.get(servicePropertyKey + ".template");
 
                     // Get the method to listen to
                     String[] methods = ((String) properties.getOrDefault(servicePropertyKey + ".method", "")).split(",");
@@ -92,16 +223,29 @@ public class HttpServer implements IHttpServer {
                         for(String method : methods) {
                             method = method.trim();
 
-                            router.addRoute(
-                                    method.equals("*") ? HttpMethod.ALL : HttpMethod.valueOf(method),  // Method
-                                    Pattern.compile(route),      // Regex path
-                                    route_values,                // Capture groups
-                                    (IHttpService) constructor.newInstance(serviceParameters)); // Service
+                            IHttpService service = (IHttpService) constructor.newInstance(serviceParameters);
+                            routeMetrics.put(service, metrics.getRouteMetrics(vhostName, serviceName.trim()));
+
+                            HttpMethod httpMethod = method.equals("*") ? HttpMethod.ALL : HttpMethod.valueOf(method);
+
+                            if(template != null)
+                                router.addRoute(
+                                        httpMethod,                  // Method
+                                        template.trim(),             // Path template
+                                        service);                    // Service
+                            else
+                                router.addRoute(
+                                        httpMethod,                  // Method
+                                        Pattern.compile(route),      // Regex path
+                                        route_values,                // Capture groups
+                                        service);                    // Service
                         }
                     }
                 }
 
-                hostRouter.addRoute(hostname, router);
+                // Several names may share the same host
+                for(String name : hostname.split(","))
+                    hostRouter.addRoute(name.trim(), port, router);
             }
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Could not load configuration file", e);
@@ -117,21 +261,22 @@ public class HttpServer implements IHttpServer {
     @Override
     public void run(int port) {
         try {
-            // Open the socket
-            ServerSocket serverSocket = new ServerSocket(port);
+            // Open the sockets. Sockets accepted from a channel expose it, which allows zero-copy file sending
+            List<ServerSocketChannel> serverChannels = bind(port);
 
             // Thread pool
-            ThreadPool pool = new ThreadPool(16);
+            pool = createThreadPool();
+
+            accept(serverChannels, clientChannel -> {
+                Socket clientSocket = clientChannel.socket();
+                long queuedAt = System.nanoTime();
 
-            // Main loop
-            while(true) {
                 try {
-                    Socket clientSocket = serverSocket.accept();
-                    pool.submit(1, () -> handleRequest(clientSocket));
-                } catch (Exception e) {
-                    logger.log(Level.SEVERE, "Socket opening failed", e);
+                    pool.submit(1, () -> handleConnection(clientSocket, shouldShed(queuedAt)));
+                } catch (RejectedActionException e) {
+                    reject(clientSocket);
                 }
-            }
+            });
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Unhandled error during setup", e);
             System.exit(1);
@@ -139,70 +284,488 @@ public class HttpServer implements IHttpServer {
     }
 
     /**
-     * Handle internally the request, using the server's host router
+     * Run the accept loops of the server sockets, with a dedicated thread per socket or, if the sockets are shared,
+     * "server.acceptors" threads per socket. One of the loops runs on the calling thread, so this never returns
+     * @param serverChannels The server sockets
+     * @param handler The handler of the accepted connections, called on the accept thread
+     */
+    protected void accept(List<ServerSocketChannel> serverChannels, ConnectionHandler handler) {
+        int threads = reusePort ? 1 : acceptors;
+        List<Thread> loops = new ArrayList<>();
+
+        for(ServerSocketChannel serverChannel : serverChannels) {
+            for(int i = 0; i < threads; i++) {
+                loops.add(new Thread(() -> {
+                    long backoff = 0;
+
+                    while(true) {
+                        SocketChannel clientChannel = null;
+
+                        try {
+                            clientChannel = serverChannel.accept();
+                            backoff = 0;
+                            configure(clientChannel);
+
+                            handler.accepted(clientChannel);
+                        } catch (Exception e) {
+                            if(clientChannel != null) {
+                                logger.log(Level.WARNING, "Accepted connection setup failed", e);
+
+                                try {
+                                    clientChannel.close();
+                                } catch (IOException ce) {
+                                    logger.log(Level.SEVERE, "Socket closing failed", ce);
+                                }
+                                continue;
+                            }
+
+                            // Accept failing repeatedly (out of file descriptors...), wait before trying again
+                            backoff = Math.min(Math.max(backoff * 2, ACCEPT_MIN_BACKOFF), ACCEPT_MAX_BACKOFF);
+                            logger.log(Level.SEVERE, "Socket opening failed, next attempt in " + backoff + "ms", e);
+
+                            try {
+                                Thread.sleep(backoff);
+                            } catch (InterruptedException ie) {
+                                return;
+                            }
+                        }
+                    }
+                }, "http-acceptor-" + getPort(serverChannel) + "-" + loops.size()));
+            }
+        }
+
+        for(Thread loop : loops.subList(1, loops.size()))
+            loop.start();
+
+        loops.get(0).run();
+    }
+
+    /**
+     * Handler of the connections accepted by the server sockets
+     */
+    protected interface ConnectionHandler {
+        void accepted(SocketChannel clientChannel) throws IOException;
+    }
+
+    /**
+     * Apply the configured options to an accepted connection
+     * @param clientChannel The connection
+     * @throws IOException
+     */
+    protected void configure(SocketChannel clientChannel) throws IOException {
+        clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, tcpNoDelay);
+
+        if(sendBuffer > 0)
+            clientChannel.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+    }
+
+    /**
+     * Open the server sockets, on the provided port and on the ports of the virtual hosts. With SO_REUSEPORT, several
+     * sockets are bound to each port and the system balances the connections between them
+     * @param port The default port
+     * @return The bound server sockets
+     * @throws IOException If a port can't be bound
+     */
+    protected List<ServerSocketChannel> bind(int port) throws IOException {
+        Set<Integer> allPorts = new LinkedHashSet<>();
+        allPorts.add(port);
+        allPorts.addAll(ports);
+
+        SocketOption<Boolean> reusePortOption = reusePort && acceptors > 1 ? getReusePortOption() : null;
+        List<ServerSocketChannel> serverChannels = new ArrayList<>();
+
+        for(int p : allPorts) {
+            int count = reusePortOption != null ? acceptors : 1;
+
+            for(int i = 0; i < count; i++) {
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+
+                if(reusePortOption != null) {
+                    if(serverChannel.supportedOptions().contains(reusePortOption)) {
+                        serverChannel.setOption(reusePortOption, true);
+                    } else {
+                        logger.warning("SO_REUSEPORT not supported, the accept threads will share the sockets");
+                        reusePortOption = null;
+                        count = 1;
+                    }
+                }
+
+                // Inherited by the accepted sockets, and needed before the bind for large windows
+                if(receiveBuffer > 0)
+                    serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+
+                serverChannel.bind(new InetSocketAddress(p), backlog);
+                serverChannels.add(serverChannel);
+            }
+
+            logger.info("Listening on port " + p);
+        }
+
+        // Without the option, the accept threads share the sockets
+        if(reusePortOption == null)
+            reusePort = false;
+
+        return serverChannels;
+    }
+
+    /**
+     * Return the SO_REUSEPORT option, only defined since Java 9
+     * @return The option, or null if not available
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            logger.warning("SO_REUSEPORT not available, the accept threads will share the sockets");
+            return null;
+        }
+    }
+
+    private static int getPort(ServerSocketChannel serverChannel) {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Create the thread pool serving the requests, according to the "server.pool" property : "priority" (default)
+     * for a single shared queue, "work-stealing" for per worker queues, or "virtual" for a virtual thread per action
+     * @return The thread pool
+     */
+    protected IThreadPool createThreadPool() {
+        IThreadPool threadPool;
+
+        switch (poolType) {
+            case "virtual":
+                // Without queue, only the running actions can be bounded
+                VirtualThreadPool virtualPool = new VirtualThreadPool("http-virtual-", virtualMaxRunning,
+                        rejectionPolicy);
+
+                // A platform thread per action would not be bounded, so use the workers instead
+                if(!virtualPool.isVirtual()) {
+                    logger.warning("Virtual threads not available (Java 21 needed), falling back to the priority pool");
+                    threadPool = new ThreadPool(workers, queueCapacity, rejectionPolicy);
+                } else {
+                    threadPool = virtualPool;
+                }
+                break;
+            case "work-stealing":
+                threadPool = new WorkStealingThreadPool(workers, queueCapacity, rejectionPolicy);
+                break;
+            case "priority":
+                threadPool = new ThreadPool(workers, queueCapacity, rejectionPolicy);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown thread pool " + poolType);
+        }
+
+        metrics.registerGauge("http_queue_size", "Actions waiting for a worker", threadPool::getQueueSize);
+
+        return threadPool;
+    }
+
+    /**
+     * Check if a request should be shed, the server being overloaded. Called when a worker picks the request, so the
+     * queueing delay is recorded here
+     * @param queuedAt The time the request, or its connection, was queued in ns
+     * @return True if the request should be answered with a 503
+     */
+    protected boolean shouldShed(long queuedAt) {
+        metrics.recordQueueWait(System.nanoTime() - queuedAt);
+
+        return loadShedder != null && loadShedder.shouldShed(queuedAt);
+    }
+
+    /**
+     * Reject the connection, the queue being full. The response is written without reading the request, so the
+     * accepting thread is not held by the client
      * @param clientSocket The client connection
      */
-    private void handleRequest(Socket clientSocket) {
-        // Timing
-        long startTime = System.nanoTime();
+    private void reject(Socket clientSocket) {
+        metrics.requestShed();
 
-        OutputStream outputStream;
-        InputStream inputStream;
-        InetAddress clientAddress;
+        try {
+            clientSocket.getOutputStream().write(("HTTP/1.1 503 Service Unavailable\r\n" +
+                    "Retry-After: " + retryAfter + "\r\n" +
+                    "Content-Length: 0\r\n" +
+                    "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            clientSocket.shutdownOutput();
+        } catch (IOException e) {
+            // The client already closed or reset the connection
+        }
 
         try {
-            outputStream = clientSocket.getOutputStream();
-            inputStream = clientSocket.getInputStream();
-            clientAddress = clientSocket.getInetAddress();
+            clientSocket.close();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Socket closing failed", e);
+        }
+    }
+
+    /**
+     * Handle internally the connection, serving requests until the client or the server closes it
+     * @param clientSocket The client connection
+     * @param shed True to only answer the first request with a 503, the server being overloaded
+     */
+    private void handleConnection(Socket clientSocket, boolean shed) {
+        metrics.connectionOpened();
+
+        try {
+            clientSocket.setSoTimeout(keepAliveTimeout);
+
+            HttpMessageReader inputStream = new HttpMessageReader(
+                    new CountingInputStream(clientSocket.getInputStream(), metrics));
+            OutputStream outputStream = new BufferedOutputStream(
+                    new CountingOutputStream(clientSocket.getOutputStream(), metrics));
+
+            boolean keepAlive = true;
+            int served = 0;
+
+            while(keepAlive) {
+                // Wait for the next request, and stop if the client closed the connection or stayed idle
+                if(served == 0 ? !inputStream.awaitMessage() : !awaitNextRequest(clientSocket, inputStream)) {
+                    clientSocket.close(); // Nothing left to read, no need to linger
+                    break;
+                }
+
+                keepAlive = handleRequest(inputStream, outputStream, clientSocket.getInetAddress(),
+                        clientSocket.getLocalPort(), clientSocket, ++served, shed);
+            }
+        } catch (SocketTimeoutException e) {
+            // Idle connection, simply close it
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Socket error", e);
-            try {
-                clientSocket.close();
-            } catch (IOException closeExcept) {
-                logger.log(Level.SEVERE, "HTTP error during processing", closeExcept);
+        } finally {
+            close(clientSocket);
+            metrics.connectionClosed();
+        }
+    }
+
+    /**
+     * Wait for the next request of a persistent connection. The worker is held while waiting, so the wait is cut
+     * short when other connections wait for a worker
+     * @param clientSocket The client connection
+     * @param inputStream The connection reader
+     * @return False if the connection should be closed : closed by the client, idle, or idle while the server is busy
+     * @throws IOException
+     */
+    private boolean awaitNextRequest(Socket clientSocket, HttpMessageReader inputStream) throws IOException {
+        long deadline = System.currentTimeMillis() + keepAliveTimeout;
+
+        try {
+            while(true) {
+                boolean busy = pool.getQueueSize() > 0;
+
+                if(busy && keepAliveBusyTimeout <= 0 && inputStream.available() == 0)
+                    return false;
+
+                int wait = (int) Math.min(deadline - System.currentTimeMillis(),
+                        busy ? keepAliveBusyTimeout : KEEPALIVE_CHECK_INTERVAL);
+                if(wait <= 0)
+                    return false;
+
+                clientSocket.setSoTimeout(wait);
+
+                try {
+                    return inputStream.awaitMessage();
+                } catch (SocketTimeoutException e) {
+                    if(busy)
+                        return false;
+                }
+            }
+        } finally {
+            if(!clientSocket.isClosed())
+                clientSocket.setSoTimeout(keepAliveTimeout);
+        }
+    }
+
+    /**
+     * Close the connection. The output is closed first, and any unread request data is discarded for a short time,
+     * so the client receives the whole response before the socket is reset
+     * @param clientSocket The client connection
+     */
+    private void close(Socket clientSocket) {
+        try {
+            if(!clientSocket.isClosed() && !clientSocket.isOutputShutdown()) {
+                clientSocket.shutdownOutput();
+                clientSocket.setSoTimeout(LINGER_TIMEOUT);
+
+                InputStream inputStream = clientSocket.getInputStream();
+                byte[] buffer = new byte[8192];
+                long discarded = 0;
+                int byteRead;
+
+                while(discarded < MAX_LINGER_DISCARD && (byteRead = inputStream.read(buffer)) > 0)
+                    discarded += byteRead;
             }
-            return;
+        } catch (IOException e) {
+            // The client already closed or reset the connection
+        }
+
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Socket closing failed", e);
         }
+    }
+
+    /**
+     * Handle internally the request, using the server's host router
+     * @param inputStream The connection input stream
+     * @param outputStream The connection output stream
+     * @param clientAddress The client address
+     * @param localPort The local port of the connection
+     * @param clientSocket The client socket, or null if the connection is not backed by a blocking socket
+     * @param served The number of requests served on this connection, including this one
+     * @param shed True to answer with a 503 without serving the request, the server being overloaded
+     * @return True if the connection should be kept open for another request
+     */
+    protected boolean handleRequest(InputStream inputStream, OutputStream outputStream, InetAddress clientAddress,
+                                    int localPort, Socket clientSocket, int served, boolean shed) {
+        // Timing
+        long startTime = System.nanoTime();
+        boolean keepAlive;
 
         // Response & request creation
         IHttpRequest request = new HttpRequest(inputStream);
-        IHttpResponse response = new HttpResponse(request, outputStream, clientSocket);
+        HttpResponse response = new HttpResponse(request, outputStream, clientSocket, compression);
+        IHttpService service = null;
+        boolean requestRead = false;
 
         try {
             // Read the request
             request.setClientAddress(clientAddress);
             request.read();
+            requestRead = true;
+
+            if(shed) {
+                metrics.requestShed();
+                response.setHeader("Retry-After", String.valueOf(retryAfter));
+                defaultErrorHandler.handleError(new HttpException(503, "Server overloaded"), request, response);
+                return false;
+            }
 
             // Get host router for the hostname
-            IHttpRouter router = hostRouter.resolve(request.getHostname());
+            IHttpRouter router = hostRouter.resolve(request.getHostname(), localPort);
             if(router == null) // If no route is found, 404
                 throw new HttpException(404, "Host not found");
 
             // Route the request
-            IHttpService service = router.resolve(request);
+            service = router.resolve(request);
             if(service == null) // If no route is found, 404
                 throw new HttpException(404, "Page not found");
 
-            // Perform the operation
+            // Perform the operation. The connection is announced before, for the services streaming their response
+            boolean requestKeepAlive = isKeepAlive(request, served);
+            response.setHeader("Connection", requestKeepAlive ? "keep-alive" : "close");
             service.serve(request, response);
 
-            // Write the response
+            // Skip the unread request body first, so the response announces whether the connection stays open
+            if(requestKeepAlive)
+                requestKeepAlive = skipBody(request);
+
+            // Write the response, or end the streamed body
+            if(!response.headerSent())
+                response.setHeader("Connection", requestKeepAlive ? "keep-alive" : "close");
             response.write();
 
+            keepAlive = requestKeepAlive && !"close".equals(response.getHeaders().get("connection"));
+        } catch (HttpException e) {
+            // Expected errors (not found, bad request...) are already in the access log
+            if(logger.isLoggable(Level.FINE))
+                logger.log(Level.FINE, "HTTP error during processing", e);
+
+            // The connection is kept for the errors leaving the stream positioned on the next request
+            keepAlive = requestRead && !response.headerSent() && !isFatal(e) && isKeepAlive(request, served) &&
+                    skipBodyQuietly(request);
+            response.setHeader("Connection", keepAlive ? "keep-alive" : "close");
+
+            // A streamed body can't be ended properly anymore
+            response.abortBody();
+            defaultErrorHandler.handleError(e, request, response);
+            keepAlive = keepAlive && !"close".equals(response.getHeaders().get("connection"));
         } catch (Exception e) {
             logger.log(Level.SEVERE, "HTTP error during processing", e);
+            response.abortBody();
             defaultErrorHandler.handleError(e, request, response);
+            keepAlive = false;
         } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                logger.log(Level.SEVERE, "Socket closing failed", e);
-            }
+            long duration = System.nanoTime() - startTime;
+
+            // Processing time, by route and status class
+            routeMetrics.getOrDefault(service, unroutedMetrics).record(response.getStatus(), duration);
+
+            if(accessLog != null)
+                accessLog.log(request, response, duration);
+        }
+
+        return keepAlive;
+    }
+
+    /**
+     * Skip the part of the request body not read by the service, so the connection is positioned on the next request
+     * @param request The request
+     * @return False if the remaining body is too large to be skipped, and the connection should be closed instead
+     * @throws IOException
+     */
+    private boolean skipBody(IHttpRequest request) throws IOException {
+        InputStream body = request.getBodyStream();
+        long skipped = 0;
+
+        while(skipped < MAX_SKIPPED_BODY) {
+            long byteSkipped = body.skip(MAX_SKIPPED_BODY - skipped);
+            if(byteSkipped <= 0)
+                break;
+            skipped += byteSkipped;
+        }
+
+        return body.read() < 0;
+    }
+
+    /**
+     * Check if an error leaves the connection unusable : malformed or too large requests, and timeouts
+     * @param error The error
+     * @return True if the connection should be closed
+     */
+    private static boolean isFatal(HttpException error) {
+        int status = error.getErrorCode();
+
+        return status == 400 || status == 408 || status == 413 || status == 431;
+    }
+
+    private boolean skipBodyQuietly(IHttpRequest request) {
+        try {
+            return skipBody(request);
+        } catch (IOException e) {
+            return false;
         }
+    }
+
+    /**
+     * Check if the connection can be kept open after the provided request
+     * @param request The request
+     * @param served The number of requests served on this connection, including this one
+     * @return True if the connection can be kept open
+     */
+    private boolean isKeepAlive(IHttpRequest request, int served) {
+        if(served >= keepAliveMaxRequests)
+            return false;
+
+        String connection = request.getHeader("Connection");
+        if(connection != null)
+            connection = connection.toLowerCase();
+
+        if("HTTP/1.1".equals(request.getProtocol()))
+            return connection == null || !connection.contains("close");
+        else
+            return connection != null && connection.contains("keep-alive");
+    }
 
-        // Performance loading
-        long duration = (System.nanoTime() - startTime);
-        logger.log(Level.INFO, String.format("Served in %f.4ms", (double)duration/1000000));
+    /**
+     * Return the thread pool serving the requests, once the server is started
+     * @return The thread pool, or null
+     */
+    public IThreadPool getThreadPool() {
+        return pool;
     }
 
     @Override
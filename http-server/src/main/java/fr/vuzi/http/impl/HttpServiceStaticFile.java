@@ -1,21 +1,24 @@
 package fr.vuzi.http.impl;
 
+import fr.vuzi.http.compression.HttpCompression;
 import fr.vuzi.http.error.HttpException;
+import fr.vuzi.http.request.HttpDate;
+import fr.vuzi.http.request.HttpEncoding;
 import fr.vuzi.http.request.IHttpRequest;
 import fr.vuzi.http.request.IHttpResponse;
 import fr.vuzi.http.service.IHttpService;
 
 import java.io.*;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.TimeZone;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,11 +28,59 @@ public class HttpServiceStaticFile implements IHttpService {
 
     private File folderPath;
 
+    private HttpStaticFileCache cache;
+
+    private HttpMappedFiles mappedFiles;
+    private long mappingThreshold;
+
+    private boolean precompressed = false;
+
+    private final HttpValidators validators;
+
     public HttpServiceStaticFile(Map<String, String> parameters) throws IOException {
-        this(parameters.get("path"));
+        // Entity tags : "mtime" (size and modification date) or "hash" (digest of the content, computed once per
+        // version of each file), and max number of files whose validators are kept
+        this(parameters.get("path"), new HttpValidators("hash".equals(parameters.getOrDefault("etag", "mtime").trim()),
+                Integer.valueOf(parameters.getOrDefault("etag.index_size", "10000"))));
+
+        // Precompressed siblings (file.gz, file.br) sent instead of the files. Opt-in, as the siblings are looked up on
+        // disk by each uncached request accepting an encoding
+        precompressed = Boolean.valueOf(parameters.getOrDefault("precompressed", "false"));
+
+        // Optional in-memory cache
+        if(Boolean.valueOf(parameters.getOrDefault("cache", "false"))) {
+            cache = new HttpStaticFileCache(
+                    Long.valueOf(parameters.getOrDefault("cache.size", "67108864")),
+                    Long.valueOf(parameters.getOrDefault("cache.file_size", "1048576")),
+                    Boolean.valueOf(parameters.getOrDefault("cache.offheap", "false")),
+                    Long.valueOf(parameters.getOrDefault("cache.check_interval", "1000")),
+                    validators.isHashed(),
+                    precompressed);
+        }
+
+        // Optional memory mapping of the large files
+        if(Boolean.valueOf(parameters.getOrDefault("mmap", "false"))) {
+            mappedFiles = new HttpMappedFiles(Long.valueOf(parameters.getOrDefault("mmap.check_interval", "1000")),
+                    Integer.valueOf(parameters.getOrDefault("mmap.max_files", "256")),
+                    Long.valueOf(parameters.getOrDefault("mmap.max_size", "1073741824")));
+            mappingThreshold = Long.valueOf(parameters.getOrDefault("mmap.threshold", "1048576"));
+        }
+
+        // Optional generation of the precompressed siblings
+        if(precompressed && Boolean.valueOf(parameters.getOrDefault("precompress", "false"))) {
+            new HttpPrecompressor(folderPath,
+                    parameters.getOrDefault("precompress.types", HttpCompression.DEFAULT_TYPES),
+                    Long.valueOf(parameters.getOrDefault("precompress.min_size", "1024")),
+                    Long.valueOf(parameters.getOrDefault("precompress.interval", "0"))).start();
+        }
     }
 
     public HttpServiceStaticFile(String folderPath) throws IOException {
+        this(folderPath, new HttpValidators(false, 10000));
+    }
+
+    private HttpServiceStaticFile(String folderPath, HttpValidators validators) throws IOException {
+        this.validators = validators;
         this.folderPath = new File(folderPath);
         if(!this.folderPath.isDirectory())
             throw new IOException("The static directory " + this.folderPath.getAbsolutePath() + " does not exists or is not " +
@@ -42,6 +93,19 @@ public class HttpServiceStaticFile implements IHttpService {
         String path = request.getLocation();
         File resource = new File(folderPath, path);
 
+        if(cache != null) {
+            try {
+                HttpStaticFileCache.CachedFile cached = cache.get(resource, response.getCompression());
+
+                if(cached != null) {
+                    uploadCachedFile(cached, request, response);
+                    return;
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, String.format("Caching of %s failed", resource.getName()), e);
+            }
+        }
+
         if(!resource.exists())
             throw new HttpException(404, String.format("File %s not found", resource.getName()));
         else if(resource.isDirectory())
@@ -50,32 +114,245 @@ public class HttpServiceStaticFile implements IHttpService {
             uploadFile(resource, request, response);
     }
 
-    private void uploadFile(File resource, IHttpRequest request, IHttpResponse response) {
-        // Cache check
-        Date modifiedSince = getDateFrom(request.getHeader("If-Modified-Since"));
-        Date fileLastModified = new Date(resource.lastModified());
+    private void uploadFile(File resource, IHttpRequest request, IHttpResponse response) throws HttpException {
+        // Set file information
+        HttpValidators.Validators fileValidators;
+        String contentType;
 
-        if (modifiedSince != null && fileLastModified.compareTo(modifiedSince) > 0) {
+        try {
+            fileValidators = validators.get(resource);
+        } catch (IOException e) {
+            throw new HttpException(404, String.format("File %s not found", resource.getName()), e);
+        }
+
+        try {
+            contentType = Files.probeContentType(Paths.get(resource.getName()));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, String.format("MIME type probe on %s failed", resource.getName()), e);
+            contentType = "application/octet-stream";
+        }
+
+        String etag = fileValidators.getETag();
+
+        response.setHeader("Last-Modified", fileValidators.getLastModifiedHeader());
+        response.setHeader("ETag", etag);
+        response.setHeader("Content-Type", contentType);
+        response.setHeader("Accept-Ranges", "bytes");
+
+        // Cache check
+        if (isNotModified(request, response, etag, fileValidators.getLastModified())) {
             response.setStatus(304);
         } else {
             response.setStatus(200);
 
             try {
-                response.setBody(new FileInputStream(resource));
+                long length = fileValidators.getLength();
+                HttpByteRanges ranges = getRanges(request, length, etag, fileValidators.getLastModifiedHeader());
+                HttpMappedFiles.MappedFile mapped = null;
+
+                if(ranges != null && !ranges.isSatisfiable()) {
+                    ranges.reject(response);
+                    return;
+                }
+
+                // Ranges apply to the identity content, so only whole files use the siblings
+                if(ranges == null && precompressed && uploadPrecompressed(resource, etag, request, response))
+                    return;
+
+                // Large files are shared from their mapping
+                if(mappedFiles != null && length >= mappingThreshold)
+                    mapped = mappedFiles.acquire(resource);
+
+                if(mapped != null) {
+                    setBody(response, mapped.getContent(), mapped, ranges, contentType);
+                } else {
+                    FileChannel channel = FileChannel.open(resource.toPath(), StandardOpenOption.READ);
+
+                    if(ranges == null) {
+                        response.setBody(channel, 0, channel.size());
+                    } else if(!ranges.isMultipart()) {
+                        ranges.accept(response);
+                        response.setBody(channel, ranges.getStart(0), ranges.getLength(0));
+                    } else {
+                        ranges.acceptMultipart(response, contentType, HttpByteRanges.of(channel), channel);
+                    }
+                }
             } catch (IOException e) {
-                response.setBody(new byte[0]);
-                e.printStackTrace();
+                logger.log(Level.SEVERE, String.format("Reading of %s failed", resource.getName()), e);
+                throw new HttpException(500, String.format("File %s could not be read", resource.getName()), e);
             }
         }
+    }
+
+    private void uploadCachedFile(HttpStaticFileCache.CachedFile cached, IHttpRequest request, IHttpResponse response)
+            throws HttpException {
+        response.setEncodingType(HttpEncoding.NONE);
+
+        if(cached.getGzipped() != null || cached.getBrotli() != null)
+            response.setHeader("Vary", "Accept-Encoding");
+
+        response.setHeader("Last-Modified", cached.getLastModifiedHeader());
+        response.setHeader("ETag", cached.getETag());
+        response.setHeader("Content-Type", cached.getContentType());
+        response.setHeader("Accept-Ranges", "bytes");
+
+        if (isNotModified(request, response, cached.getETag(), cached.getLastModified())) {
+            response.setStatus(304);
+            return;
+        }
+
+        response.setStatus(200);
+
+        HttpByteRanges ranges = getRanges(request, cached.getContent().remaining(), cached.getETag(),
+                cached.getLastModifiedHeader());
+
+        if(ranges != null && !ranges.isSatisfiable()) {
+            ranges.reject(response);
+        } else if(ranges != null) {
+            try {
+                setBody(response, cached.getContent(), null, ranges, cached.getContentType());
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Cached file ranges could not be sent", e);
+                throw new HttpException(500, "Cached file could not be sent", e);
+            }
+        } else {
+            // The precomputed variants replace the compression of the response
+            List<HttpEncoding> variants = new ArrayList<>(2);
+            for(HttpEncoding encodingType : HttpPrecompressor.ENCODINGS) {
+                if(cached.getEncoded(encodingType) != null)
+                    variants.add(encodingType);
+            }
+
+            HttpEncoding encodingType = HttpEncoding.negotiate(request.getHeader("Accept-Encoding"), variants);
+
+            if(encodingType != HttpEncoding.NONE) {
+                response.setHeader("Content-Encoding", encodingType.headerName);
+                response.setHeader("ETag", cached.getEncodedETag(encodingType));
+                response.setBody(cached.getEncoded(encodingType));
+            } else {
+                response.setBody(cached.getContent());
+            }
+        }
+    }
+
+    /**
+     * Send the precompressed sibling of the file preferred by the client, if any is up to date
+     * @return True if a sibling is sent
+     */
+    private boolean uploadPrecompressed(File resource, String etag, IHttpRequest request, IHttpResponse response) {
+        String acceptedEncoding = request.getHeader("Accept-Encoding");
+        if(acceptedEncoding == null)
+            return false;
+
+        List<HttpEncoding> variants = new ArrayList<>(2);
+        for(HttpEncoding encodingType : HttpPrecompressor.ENCODINGS) {
+            if(encodingType.isAccepted(acceptedEncoding) &&
+                    HttpPrecompressor.isUpToDate(HttpPrecompressor.getSibling(resource, encodingType), resource))
+                variants.add(encodingType);
+        }
+
+        HttpEncoding encodingType = HttpEncoding.negotiate(acceptedEncoding, variants);
+        if(encodingType == HttpEncoding.NONE)
+            return false;
 
-        // Set file information
-        response.setHeader("Last-Modified", getFormattedDate(fileLastModified));
         try {
-            response.setHeader("Content-Type", Files.probeContentType(Paths.get(resource.getName())));
+            FileChannel channel = FileChannel.open(HttpPrecompressor.getSibling(resource, encodingType).toPath(),
+                    StandardOpenOption.READ);
+
+            response.setEncodingType(HttpEncoding.NONE);
+            response.setHeader("Content-Encoding", encodingType.headerName);
+            response.setHeader("ETag", encodingType.encodeETag(etag));
+            response.setHeader("Vary", "Accept-Encoding");
+            response.setBody(channel, 0, channel.size());
+
+            return true;
         } catch (IOException e) {
-            logger.log(Level.SEVERE, String.format("MIME type probe on %s failed", resource.getName()), e);
-            response.setHeader("Content-Type", "application/octet-stream");
+            return false; // Removed since checked, send the file instead
+        }
+    }
+
+    /**
+     * Set the body to the buffer content, or to the requested ranges of it
+     */
+    private void setBody(IHttpResponse response, ByteBuffer content, Closeable release, HttpByteRanges ranges,
+                         String contentType) throws IOException {
+        if(ranges == null) {
+            response.setBody(content, release);
+        } else if(!ranges.isMultipart()) {
+            ranges.accept(response);
+            response.setBody(HttpByteRanges.slice(content, ranges.getStart(0), ranges.getLength(0)), release);
+        } else {
+            ranges.acceptMultipart(response, contentType, HttpByteRanges.of(content), release);
+        }
+    }
+
+    /**
+     * Return the ranges requested, if they apply to the current version of the file
+     * @return The ranges, or null if the whole file should be sent
+     */
+    private HttpByteRanges getRanges(IHttpRequest request, long length, String etag, String lastModified) {
+        if(!"GET".equals(request.getMethod()))
+            return null;
+
+        // The ranges are ignored if the client's copy is outdated
+        String ifRange = request.getHeader("If-Range");
+        if(ifRange != null && !ifRange.equals(etag) && !ifRange.equals(lastModified))
+            return null;
+
+        return HttpByteRanges.parse(request.getHeader("Range"), length);
+    }
+
+    /**
+     * Check the conditional headers of the request (RFC 7232) : If-None-Match if present, else If-Modified-Since. The
+     * entity tag matched is set on the response, as the client's copy may be an encoded representation
+     * @param etag The entity tag of the file
+     * @param lastModified The modification date of the file, in ms
+     * @return True if the client's copy is up to date, and a 304 should be sent
+     */
+    private boolean isNotModified(IHttpRequest request, IHttpResponse response, String etag, long lastModified) {
+        if(!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod()))
+            return false;
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+
+        if(ifNoneMatch != null) {
+            String matched = getMatchingETag(ifNoneMatch, etag);
+            if(matched != null && !matched.equals("*"))
+                response.setHeader("ETag", matched);
+
+            return matched != null;
         }
+
+        // Dates have a second precision, and dates in the future are invalid
+        long modifiedSince = HttpDate.parse(request.getHeader("If-Modified-Since"));
+
+        return modifiedSince >= 0 && modifiedSince <= System.currentTimeMillis() &&
+                lastModified / 1000 <= modifiedSince / 1000;
+    }
+
+    /**
+     * Return the entity tag of the If-None-Match header matching the file, using the weak comparison : the file's
+     * entity tag or the one of an encoded representation, weak or not, or *
+     * @param ifNoneMatch The If-None-Match header value
+     * @param etag The entity tag of the file
+     * @return The matching entity tag, or null if none matches
+     */
+    private static String getMatchingETag(String ifNoneMatch, String etag) {
+        for(String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+
+            if(candidate.equals("*"))
+                return candidate;
+
+            String opaque = candidate.startsWith("W/") ? candidate.substring(2) : candidate;
+
+            for(HttpEncoding encodingType : HttpEncoding.values()) {
+                if(opaque.equals(encodingType.encodeETag(etag)))
+                    return candidate;
+            }
+        }
+
+        return null;
     }
 
     private void showDirectory(File resource, IHttpRequest request, IHttpResponse response) {
@@ -121,30 +398,4 @@ public class HttpServiceStaticFile implements IHttpService {
         return sb.toString();
     }
 
-    public static String dateFormat = "EEE, dd MMM yyyy HH:mm:ss z";
-    public static SimpleDateFormat dateFormatter;
-
-    static {
-        dateFormatter = new SimpleDateFormat(HttpServiceStaticFile.dateFormat, Locale.US);
-        dateFormatter.setTimeZone(TimeZone.getTimeZone("GMT"));
-    }
-
-    private Date getDateFrom(String date) {
-        if(date == null)
-            return null;
-
-        try {
-            return dateFormatter.parse(date);
-        } catch (Exception e) {
-            return null;
-        }
-    }
-
-    private String getFormattedDate(long timestamp) {
-        return getFormattedDate(new Date(timestamp));
-    }
-
-    private String getFormattedDate(Date date) {
-        return dateFormatter.format(date);
-    }
 }
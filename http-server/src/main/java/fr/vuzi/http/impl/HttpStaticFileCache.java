@@ -0,0 +1,305 @@
+package fr.vuzi.http.impl;
+
+import fr.vuzi.http.compression.HttpCompression;
+import fr.vuzi.http.request.HttpDate;
+import fr.vuzi.http.request.HttpEncoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-memory cache of static files, bounded by a total size in bytes and evicting the least recently used files.
+ * Each entry holds the immutable content, optionally off-heap, with its MIME type, validators and its gzip and
+ * Brotli variants, read from the precompressed siblings (file.gz, file.br) if enabled or for gzip computed when loaded
+ * if the server compression allows it. Hits don't touch the filesystem, except to check the modification date once per check
+ * interval
+ */
+public class HttpStaticFileCache {
+
+    private final long maxSize;
+    private final long maxFileSize;
+    private final boolean offHeap;
+    private final long checkInterval;
+    private final boolean hashed;
+    private final boolean precompressed;
+
+    private final LinkedHashMap<String, CachedFile> files = new LinkedHashMap<>(64, 0.75f, true);
+    private long size = 0;
+
+    /**
+     * Create a new cache
+     * @param maxSize The total size of the cached content, in bytes
+     * @param maxFileSize The size of the largest cached file, in bytes
+     * @param offHeap True to store the content in direct buffers, outside of the heap
+     * @param checkInterval The minimum delay between two modification checks of a file, in ms
+     * @param hashed True to use a digest of the content as entity tag, instead of the size and modification date
+     * @param precompressed True to read the precompressed siblings of the files
+     */
+    public HttpStaticFileCache(long maxSize, long maxFileSize, boolean offHeap, long checkInterval, boolean hashed,
+                               boolean precompressed) {
+        this.maxSize = maxSize;
+        this.maxFileSize = Math.min(maxFileSize, maxSize);
+        this.offHeap = offHeap;
+        this.checkInterval = checkInterval;
+        this.hashed = hashed;
+        this.precompressed = precompressed;
+    }
+
+    /**
+     * Return the cached version of the file, loading it if needed
+     * @param resource The file
+     * @param compression The compression of the server, or null if disabled
+     * @return The cached file, or null if the file can't be cached (missing, directory or too large)
+     * @throws IOException If the file could not be read
+     */
+    public CachedFile get(File resource, HttpCompression compression) throws IOException {
+        String key = resource.getPath();
+        long now = System.currentTimeMillis();
+        CachedFile file;
+
+        synchronized (files) {
+            file = files.get(key);
+        }
+
+        if(file != null) {
+            if(now - file.checkedAt < checkInterval)
+                return file;
+
+            // Invalidate the file if it changed since it was loaded
+            if(resource.lastModified() == file.lastModified && resource.length() == file.length) {
+                file.checkedAt = now;
+                return file;
+            }
+
+            remove(key);
+        }
+
+        if(!resource.isFile() || resource.length() > maxFileSize)
+            return null;
+
+        file = load(resource, compression, now);
+
+        synchronized (files) {
+            CachedFile previous = files.put(key, file);
+            if(previous != null)
+                size -= previous.getSize();
+
+            size += file.getSize();
+
+            // Evict the least recently used files
+            Iterator<CachedFile> it = files.values().iterator();
+            while(size > maxSize && it.hasNext()) {
+                CachedFile evicted = it.next();
+                if(evicted == file)
+                    continue;
+
+                it.remove();
+                size -= evicted.getSize();
+            }
+        }
+
+        return file;
+    }
+
+    private void remove(String key) {
+        synchronized (files) {
+            CachedFile removed = files.remove(key);
+            if(removed != null)
+                size -= removed.getSize();
+        }
+    }
+
+    private CachedFile load(File resource, HttpCompression compression, long now) throws IOException {
+        long lastModified = resource.lastModified();
+        byte[] content = Files.readAllBytes(resource.toPath());
+
+        String contentType = Files.probeContentType(Paths.get(resource.getName()));
+        if(contentType == null)
+            contentType = "application/octet-stream";
+
+        // Precompressed siblings, else gzip computed once if the server would compress the file. Only keep the
+        // compressed variants if worth it
+        byte[] gzipped = precompressed ? readSibling(resource, HttpEncoding.GZIP) : null;
+        boolean computed = false;
+        if(gzipped == null && compression != null &&
+                compression.allows(HttpEncoding.GZIP, contentType, content.length)) {
+            gzipped = gzip(content);
+            computed = true;
+        }
+        if(gzipped != null && gzipped.length >= content.length * 0.9)
+            gzipped = null;
+
+        byte[] brotli = precompressed ? readSibling(resource, HttpEncoding.BROTLI) : null;
+        if(brotli != null && brotli.length >= content.length * 0.9)
+            brotli = null;
+
+        String etag = hashed ? HttpValidators.getETag(content) : HttpValidators.getETag(content.length, lastModified);
+
+        // Only the siblings' bytes are stable enough for a strong entity tag
+        String gzippedETag = computed ? HttpEncoding.GZIP.encodeWeakETag(etag) : HttpEncoding.GZIP.encodeETag(etag);
+
+        return new CachedFile(toBuffer(content), gzipped != null ? toBuffer(gzipped) : null,
+                brotli != null ? toBuffer(brotli) : null, contentType, lastModified, HttpDate.format(lastModified),
+                etag, gzippedETag, content.length, now);
+    }
+
+    /**
+     * Read the precompressed sibling of the file, if up to date
+     * @return The sibling content, or null
+     */
+    private static byte[] readSibling(File resource, HttpEncoding encodingType) throws IOException {
+        File sibling = HttpPrecompressor.getSibling(resource, encodingType);
+
+        if(!HttpPrecompressor.isUpToDate(sibling, resource) || sibling.length() > resource.length())
+            return null;
+
+        try {
+            return Files.readAllBytes(sibling.toPath());
+        } catch (NoSuchFileException e) {
+            return null; // Removed since checked
+        }
+    }
+
+    private ByteBuffer toBuffer(byte[] content) {
+        if(!offHeap)
+            return ByteBuffer.wrap(content).asReadOnlyBuffer();
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+        buffer.put(content);
+        buffer.flip();
+
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+
+        // Computed once per load, so use the best compression level
+        GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        };
+        gzip.write(content);
+        gzip.close();
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Return the total size of the cached content, in bytes
+     * @return The cache size
+     */
+    public long getSize() {
+        synchronized (files) {
+            return size;
+        }
+    }
+
+    /**
+     * Cached file, immutable except for its last check date
+     */
+    public static class CachedFile {
+        private final ByteBuffer content;
+        private final ByteBuffer gzipped;
+        private final ByteBuffer brotli;
+        private final String contentType;
+        private final long lastModified;
+        private final String lastModifiedHeader;
+        private final long length;
+        private final String etag;
+        private final String gzippedETag;
+
+        private volatile long checkedAt;
+
+        CachedFile(ByteBuffer content, ByteBuffer gzipped, ByteBuffer brotli, String contentType, long lastModified,
+                   String lastModifiedHeader, String etag, String gzippedETag, long length, long checkedAt) {
+            this.content = content;
+            this.gzipped = gzipped;
+            this.brotli = brotli;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+            this.lastModifiedHeader = lastModifiedHeader;
+            this.length = length;
+            this.etag = etag;
+            this.gzippedETag = gzippedETag;
+            this.checkedAt = checkedAt;
+        }
+
+        /**
+         * Return the content. The buffer is shared, and should be duplicated before being read
+         * @return The file content
+         */
+        public ByteBuffer getContent() {
+            return content;
+        }
+
+        /**
+         * Return the gzip compressed content, or null if the compression is not worth it
+         * @return The compressed content
+         */
+        public ByteBuffer getGzipped() {
+            return gzipped;
+        }
+
+        /**
+         * Return the Brotli compressed content, read from the precompressed sibling, or null if there is none
+         * @return The compressed content
+         */
+        public ByteBuffer getBrotli() {
+            return brotli;
+        }
+
+        /**
+         * Return the compressed content
+         * @param encodingType The encoding, gzip or Brotli
+         * @return The compressed content, or null if not available
+         */
+        public ByteBuffer getEncoded(HttpEncoding encodingType) {
+            return encodingType == HttpEncoding.BROTLI ? brotli : encodingType == HttpEncoding.GZIP ? gzipped : null;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Return the formatted modification date, ready to be used as the Last-Modified header
+         * @return The Last-Modified header value
+         */
+        public String getLastModifiedHeader() {
+            return lastModifiedHeader;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Return the entity tag of the compressed content, weak if the content was compressed when loaded
+         * @param encodingType The encoding, gzip or Brotli
+         * @return The entity tag
+         */
+        public String getEncodedETag(HttpEncoding encodingType) {
+            return encodingType == HttpEncoding.GZIP ? gzippedETag : encodingType.encodeETag(etag);
+        }
+
+        long getSize() {
+            return content.capacity() + (gzipped != null ? gzipped.capacity() : 0) +
+                    (brotli != null ? brotli.capacity() : 0);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package fr.vuzi.http.impl;
+
+import fr.vuzi.http.request.IHttpRequest;
+import fr.vuzi.http.route.HttpMethod;
+import fr.vuzi.http.route.IHttpRouter;
+import fr.vuzi.http.service.IHttpService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Router compiling its routes into a radix tree, so the resolution cost depends on the path length and not on the
+ * number of routes. Path templates like /api/users/{id} are stored in the tree, with {name} matching the end of a
+ * segment and a final {name*} matching the rest of the path. Regex routes made of a literal prefix (like ^/static/.*) are stored in
+ * the tree too, and the other regex routes are tried in order as a fallback.
+ * <p>
+ * As with the linear router, the first registered route matching the request is used
+ */
+public class HttpTreeRouter implements IHttpRouter {
+
+    private final Node root = new Node("");
+    private final List<RegexRoute> regexRoutes = new ArrayList<>();
+    private int count = 0;
+
+    @Override
+    public void addRoute(HttpMethod method, Pattern pattern, IHttpService service) {
+        addRoute(method, pattern, new String[0], service);
+    }
+
+    @Override
+    public void addRoute(HttpMethod method, Pattern pattern, String[] values, IHttpService service) {
+        String prefix = getLiteralPrefix(pattern);
+        Route route = new Route(count++, new String[0], service);
+
+        if(prefix != null)
+            insert(root, prefix).prefixRoutes.add(method, route);
+        else
+            regexRoutes.add(new RegexRoute(method, pattern, values, route));
+    }
+
+    @Override
+    public void addRoute(HttpMethod method, String template, IHttpService service) {
+        List<String> names = new ArrayList<>();
+        Node node = root;
+        int position = 0;
+
+        while(position < template.length()) {
+            int start = template.indexOf('{', position);
+            if(start < 0) {
+                node = insert(node, template.substring(position));
+                break;
+            }
+
+            int end = template.indexOf('}', start);
+            if(end < 0)
+                throw new IllegalArgumentException("Unclosed parameter in route " + template);
+
+            node = insert(node, template.substring(position, start));
+            String name = template.substring(start + 1, end);
+            position = end + 1;
+
+            if(name.endsWith("*")) {
+                if(position < template.length())
+                    throw new IllegalArgumentException("Catch-all parameter not at the end of route " + template);
+
+                names.add(name.substring(0, name.length() - 1));
+                node.catchAllRoutes.add(method, new Route(count++, names.toArray(new String[0]), service));
+                return;
+            }
+
+            // A parameter matches the whole rest of its segment
+            if(position < template.length() && template.charAt(position) != '/')
+                throw new IllegalArgumentException("Parameter not at the end of a segment in route " + template);
+
+            names.add(name);
+
+            if(node.parameter == null)
+                node.parameter = new Node("");
+            node = node.parameter;
+        }
+
+        node.routes.add(method, new Route(count++, names.toArray(new String[0]), service));
+    }
+
+    @Override
+    public IHttpService resolve(IHttpRequest request) {
+        String location = request.getLocation();
+        int query = location.indexOf('?');
+        String path = query < 0 ? location : location.substring(0, query);
+
+        Match match = new Match(request.getMethod());
+        match(root, path, 0, new String[path.length() + 1], 0, match);
+
+        // Regex routes registered before the tree match
+        for(RegexRoute regexRoute : regexRoutes) {
+            if(match.route != null && regexRoute.route.index > match.route.index)
+                break;
+
+            if(regexRoute.method != HttpMethod.ALL && !request.getMethod().equals(regexRoute.method.getMethod()))
+                continue;
+
+            Matcher m = regexRoute.pattern.matcher(location);
+
+            if(m.find()) {
+                for(int i = 1; i <= m.groupCount() && i <= regexRoute.values.length; i++)
+                    request.getParameters().put(regexRoute.values[i - 1], m.group(i));
+
+                return regexRoute.route.service;
+            }
+        }
+
+        if(match.route == null)
+            return null; // Not found
+
+        for(int i = 0; i < match.route.names.length; i++)
+            request.getParameters().put(match.route.names[i], match.values[i]);
+
+        return match.route.service;
+    }
+
+    /**
+     * Find the routes matching the path from the node, keeping the first registered one
+     * @param node The node, whose label is already matched
+     * @param path The request path
+     * @param position The position in the path after the node label
+     * @param values The parameter values matched so far
+     * @param depth The number of parameter values
+     * @param match The best match
+     */
+    private void match(Node node, String path, int position, String[] values, int depth, Match match) {
+        match.offer(node.prefixRoutes, values, depth, null);
+
+        if(position == path.length())
+            match.offer(node.routes, values, depth, null);
+
+        if(!node.catchAllRoutes.isEmpty())
+            match.offer(node.catchAllRoutes, values, depth, path.substring(position));
+
+        if(position == path.length())
+            return;
+
+        Node child = node.getChild(path.charAt(position));
+        if(child != null && path.startsWith(child.label, position))
+            match(child, path, position + child.label.length(), values, depth, match);
+
+        if(node.parameter != null && path.charAt(position) != '/') {
+            int end = path.indexOf('/', position);
+            if(end < 0)
+                end = path.length();
+
+            values[depth] = path.substring(position, end);
+            match(node.parameter, path, end, values, depth + 1, match);
+        }
+    }
+
+    /**
+     * Insert the literal path under the node, splitting the existing edges if needed
+     * @return The node matching the end of the literal path
+     */
+    private static Node insert(Node node, String literal) {
+        while(!literal.isEmpty()) {
+            Node child = node.getChild(literal.charAt(0));
+
+            if(child == null) {
+                child = new Node(literal);
+                node.addChild(child);
+                return child;
+            }
+
+            int common = 0;
+            int max = Math.min(literal.length(), child.label.length());
+            while(common < max && literal.charAt(common) == child.label.charAt(common))
+                common++;
+
+            if(common < child.label.length()) {
+                // Split the edge at the end of the common prefix
+                Node split = new Node(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                split.addChild(child);
+                node.replaceChild(split);
+                child = split;
+            }
+
+            node = child;
+            literal = literal.substring(common);
+        }
+
+        return node;
+    }
+
+    /**
+     * Return the literal prefix matched by the pattern, if the pattern is only a prefix match like ^/static/.* or .*
+     * @param pattern The pattern
+     * @return The prefix, or null if the pattern is a real regex
+     */
+    private static String getLiteralPrefix(Pattern pattern) {
+        String regex = pattern.pattern();
+
+        if(pattern.flags() != 0)
+            return null;
+
+        if(regex.isEmpty() || regex.equals(".*"))
+            return ""; // Found anywhere, so matches everything
+
+        if(!regex.startsWith("^"))
+            return null;
+
+        regex = regex.endsWith(".*") ? regex.substring(1, regex.length() - 2) : regex.substring(1);
+        StringBuilder prefix = new StringBuilder();
+
+        for(int i = 0; i < regex.length(); i++) {
+            char c = regex.charAt(i);
+
+            if(c == '\\' && i + 1 < regex.length() && "./-".indexOf(regex.charAt(i + 1)) >= 0)
+                c = regex.charAt(++i);
+            else if(!Character.isLetterOrDigit(c) && "/-_~%,;:=@!&'".indexOf(c) < 0)
+                return null;
+
+            prefix.append(c);
+        }
+
+        return prefix.toString();
+    }
+
+    /**
+     * Node of the tree, for a literal part of the paths
+     */
+    private static class Node {
+        private String label;
+
+        private char[] indices = new char[0];
+        private Node[] children = new Node[0];
+        private Node parameter;
+
+        private final MethodRoutes routes = new MethodRoutes();
+        private final MethodRoutes prefixRoutes = new MethodRoutes();
+        private final MethodRoutes catchAllRoutes = new MethodRoutes();
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        Node getChild(char c) {
+            for(int i = 0; i < indices.length; i++) {
+                if(indices[i] == c)
+                    return children[i];
+            }
+
+            return null;
+        }
+
+        void addChild(Node child) {
+            int size = indices.length;
+
+            char[] newIndices = new char[size + 1];
+            Node[] newChildren = new Node[size + 1];
+            System.arraycopy(indices, 0, newIndices, 0, size);
+            System.arraycopy(children, 0, newChildren, 0, size);
+            newIndices[size] = child.label.charAt(0);
+            newChildren[size] = child;
+
+            indices = newIndices;
+            children = newChildren;
+        }
+
+        void replaceChild(Node child) {
+            for(int i = 0; i < indices.length; i++) {
+                if(indices[i] == child.label.charAt(0))
+                    children[i] = child;
+            }
+        }
+    }
+
+    /**
+     * Routes of a node, by method. Only the first route registered for a method is kept, as it hides the next ones
+     */
+    private static class MethodRoutes {
+        private Route all;
+        private Map<String, Route> byMethod;
+
+        void add(HttpMethod method, Route route) {
+            if(method == HttpMethod.ALL) {
+                if(all == null)
+                    all = route;
+            } else {
+                if(byMethod == null)
+                    byMethod = new HashMap<>();
+
+                byMethod.putIfAbsent(method.getMethod(), route);
+            }
+        }
+
+        Route get(String method) {
+            Route route = byMethod != null ? byMethod.get(method) : null;
+
+            if(route == null || (all != null && all.index < route.index))
+                return all;
+
+            return route;
+        }
+
+        boolean isEmpty() {
+            return all == null && byMethod == null;
+        }
+    }
+
+    private static class Route {
+        private final int index;
+        private final String[] names;
+        private final IHttpService service;
+
+        Route(int index, String[] names, IHttpService service) {
+            this.index = index;
+            this.names = names;
+            this.service = service;
+        }
+    }
+
+    private static class RegexRoute {
+        private final HttpMethod method;
+        private final Pattern pattern;
+        private final String[] values;
+        private final Route route;
+
+        RegexRoute(HttpMethod method, Pattern pattern, String[] values, Route route) {
+            this.method = method;
+            this.pattern = pattern;
+            this.values = values;
+            this.route = route;
+        }
+    }
+
+    /**
+     * First registered route found during the resolution, with its parameter values
+     */
+    private static class Match {
+        private final String method;
+        private Route route;
+        private String[] values;
+
+        Match(String method) {
+            this.method = method;
+        }
+
+        void offer(MethodRoutes routes, String[] values, int depth, String rest) {
+            if(routes.isEmpty())
+                return;
+
+            Route candidate = routes.get(method);
+
+            if(candidate == null || (route != null && route.index < candidate.index))
+                return;
+
+            route = candidate;
+            this.values = new String[depth + 1];
+            System.arraycopy(values, 0, this.values, 0, depth);
+            this.values[depth] = rest;
+        }
+    }
+}
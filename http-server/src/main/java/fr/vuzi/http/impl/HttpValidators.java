@@ -0,0 +1,161 @@
+package fr.vuzi.http.impl;
+
+import fr.vuzi.http.request.HttpDate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the validators of the static files : entity tag and formatted modification date, computed once per
+ * version of each file. The entity tag is made of the size and the modification date of the file, or of a digest of
+ * its content, computed again only when the file changes
+ */
+public class HttpValidators {
+
+    private final boolean hashed;
+    private final int maxEntries;
+
+    private final Map<String, Validators> index = new ConcurrentHashMap<>();
+
+    /**
+     * Create a new index
+     * @param hashed True to use a digest of the content as entity tag, instead of the size and modification date
+     * @param maxEntries The max number of files indexed, the index being cleared when reached
+     */
+    public HttpValidators(boolean hashed, int maxEntries) {
+        this.hashed = hashed;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Return the validators of the current version of the file
+     * @param resource The file
+     * @return The validators
+     * @throws IOException If the file is missing or can't be read
+     */
+    public Validators get(File resource) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(resource.toPath(), BasicFileAttributes.class);
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        long length = attributes.size();
+
+        String key = resource.getPath();
+        Validators validators = index.get(key);
+
+        if(validators != null && validators.lastModified == lastModified && validators.length == length)
+            return validators;
+
+        validators = new Validators(length, lastModified,
+                hashed ? getETag(resource) : getETag(length, lastModified), HttpDate.format(lastModified));
+
+        if(index.size() >= maxEntries)
+            index.clear();
+
+        index.put(key, validators);
+
+        return validators;
+    }
+
+    /**
+     * Return true if the entity tags are computed from the content
+     * @return True for content digests
+     */
+    public boolean isHashed() {
+        return hashed;
+    }
+
+    /**
+     * Return the entity tag of a file version
+     * @param length The file length
+     * @param lastModified The file modification date
+     * @return The quoted entity tag
+     */
+    static String getETag(long length, long lastModified) {
+        return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * Return the entity tag of a content
+     * @param content The content
+     * @return The quoted entity tag
+     */
+    static String getETag(byte[] content) {
+        MessageDigest digest = newDigest();
+        digest.update(content);
+
+        return toETag(digest);
+    }
+
+    private static String getETag(File resource) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[65536];
+
+        try(InputStream in = Files.newInputStream(resource.toPath())) {
+            int byteRead;
+            while((byteRead = in.read(buffer)) > 0)
+                digest.update(buffer, 0, byteRead);
+        }
+
+        return toETag(digest);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e); // Required on every platform
+        }
+    }
+
+    private static String toETag(MessageDigest digest) {
+        // 128 bits are enough to tell the versions of a file apart
+        byte[] hash = Arrays.copyOf(digest.digest(), 16);
+
+        return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(hash) + "\"";
+    }
+
+    /**
+     * Validators of a file version
+     */
+    public static class Validators {
+        private final long length;
+        private final long lastModified;
+        private final String etag;
+        private final String lastModifiedHeader;
+
+        Validators(long length, long lastModified, String etag, String lastModifiedHeader) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.etag = etag;
+            this.lastModifiedHeader = lastModifiedHeader;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Return the formatted modification date, ready to be used as the Last-Modified header
+         * @return The Last-Modified header value
+         */
+        public String getLastModifiedHeader() {
+            return lastModifiedHeader;
+        }
+    }
+}
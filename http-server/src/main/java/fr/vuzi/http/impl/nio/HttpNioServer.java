@@ -0,0 +1,110 @@
+package fr.vuzi.http.impl.nio;
+
+import fr.vuzi.http.impl.HttpServer;
+import fr.vuzi.http.request.HttpMessageReader;
+import fr.vuzi.thread.RejectedActionException;
+
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP server implementation using non-blocking channels. Connections are spread over several selector loops which
+ * read and parse the requests, and only the service processing is handed to the worker thread pool. Idle
+ * connections then only cost a selection key instead of a thread
+ */
+public class HttpNioServer extends HttpServer {
+
+    private static Logger logger = Logger.getLogger(HttpNioServer.class.getCanonicalName());
+
+    private int selectors = Runtime.getRuntime().availableProcessors();
+    private int maxBodySize = 10485760; // 10Mo
+
+    @Override
+    public void configure(Properties properties) throws Exception {
+        super.configure(properties);
+
+        selectors = Integer.valueOf((String) properties.getOrDefault("server.nio.selectors", String.valueOf(selectors)));
+
+        // Requests are received entirely before being dispatched, so their body is held in memory up to this size
+        maxBodySize = Integer.valueOf((String) properties.getOrDefault("server.nio.max_body", "10485760"));
+    }
+
+    @Override
+    public void run(int port) {
+        try {
+            // Open the sockets
+            List<ServerSocketChannel> serverChannels = bind(port);
+
+            // Thread pool, only used to serve the requests
+            pool = createThreadPool();
+
+            // Selector loops
+            NioEventLoop[] loops = new NioEventLoop[selectors];
+            for(int i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop(this);
+
+                Thread t = new Thread(loops[i], "http-nio-loop-" + i);
+                t.start();
+            }
+
+            // Connections are spread over the loops
+            AtomicInteger next = new AtomicInteger();
+
+            accept(serverChannels, clientChannel -> {
+                clientChannel.configureBlocking(false);
+                loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length].register(clientChannel);
+            });
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Unhandled error during setup", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Serve a fully received request on a worker thread. If the pool is full, the request is answered with a 503
+     * from the current thread
+     * @param connection The connection of the request
+     * @param request The raw request, headers and body
+     * @param served The number of requests served on this connection, including this one
+     */
+    void dispatch(NioConnection connection, byte[] request, int served) {
+        long queuedAt = System.nanoTime();
+
+        try {
+            pool.submit(1, () -> serve(connection, request, served, shouldShed(queuedAt)));
+        } catch (RejectedActionException e) {
+            serve(connection, request, served, true);
+        }
+    }
+
+    private void serve(NioConnection connection, byte[] request, int served, boolean shed) {
+        boolean keepAlive = false;
+
+        try {
+            keepAlive = handleRequest(new HttpMessageReader(request), connection.getOutputStream(),
+                    connection.getClientAddress(), connection.getLocalPort(), null, served, shed);
+            connection.getOutputStream().flush();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Unhandled error during processing", e);
+            keepAlive = false;
+        } finally {
+            connection.responseDone(keepAlive);
+        }
+    }
+
+    int getKeepAliveTimeout() {
+        return keepAliveTimeout;
+    }
+
+    int getKeepAliveMaxRequests() {
+        return keepAliveMaxRequests;
+    }
+
+    int getMaxBodySize() {
+        return maxBodySize;
+    }
+}
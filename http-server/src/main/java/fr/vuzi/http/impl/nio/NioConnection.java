@@ -0,0 +1,438 @@
+package fr.vuzi.http.impl.nio;
+
+import fr.vuzi.http.metrics.HttpMetrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client connection of the NIO server. The request is accumulated and parsed incrementally on the loop thread, until
+ * the headers and the body are complete. The whole body is held in memory, so its size is limited by the
+ * server.nio.max_body setting (413 above). Outgoing data is queued by the worker thread and written by the loop when
+ * the channel is writable
+ */
+class NioConnection {
+
+    private static final int MAX_HEAD_SIZE = 65536; // 64Ko
+    private static final int INITIAL_SIZE = 4096;
+
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final InetAddress clientAddress;
+    private final int localPort;
+    private final int maxBodySize;
+
+    // Incoming data
+    private byte[] data = new byte[INITIAL_SIZE];
+    private int length = 0;
+    private int scanned = 0;
+    private int headEnd = -1;
+    private int bodyLength = 0;
+    private boolean chunked = false;
+    private int chunkPosition = 0;
+    private long chunkedLength = 0;
+
+    // Connection state, only accessed by the loop thread
+    private boolean processing = false;
+    private boolean closeAfterWrite = false;
+    private int served = 0;
+    private long lastActivity = System.currentTimeMillis();
+
+    // Outgoing data
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong outboundBytes = new AtomicLong();
+    private final NioOutputStream outputStream = new NioOutputStream(this);
+
+    private volatile boolean closed = false;
+
+    NioConnection(NioEventLoop loop, SocketChannel channel, SelectionKey key) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        this.clientAddress = channel.socket().getInetAddress();
+        this.localPort = channel.socket().getLocalPort();
+        this.maxBodySize = loop.getServer().getMaxBodySize();
+
+        HttpMetrics.getInstance().connectionOpened();
+    }
+
+    /**
+     * Read the available data and try to parse a request
+     * @param buffer The loop read buffer
+     * @throws IOException
+     */
+    void onReadable(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int byteRead = channel.read(buffer);
+
+        if(byteRead < 0) {
+            close();
+            return;
+        }
+
+        HttpMetrics.getInstance().addBytesReceived(byteRead);
+        lastActivity = System.currentTimeMillis();
+        buffer.flip();
+
+        // Grown up to the largest accepted request
+        if(length + byteRead > data.length)
+            data = Arrays.copyOf(data, Math.max(length + byteRead,
+                    (int) Math.min(data.length * 2L, (long) MAX_HEAD_SIZE + maxBodySize)));
+
+        buffer.get(data, length, byteRead);
+        length += byteRead;
+
+        parse();
+    }
+
+    /**
+     * Parse the received data, and dispatch the request once complete
+     */
+    private void parse() {
+        if(processing || closeAfterWrite || closed)
+            return;
+
+        // Look for the end of the headers, starting where the previous read stopped
+        if(headEnd < 0) {
+            for(int i = Math.max(scanned, 3); i < length; i++) {
+                if(data[i] == '\n' && data[i - 1] == '\r' && data[i - 2] == '\n' && data[i - 3] == '\r') {
+                    headEnd = i + 1;
+                    break;
+                }
+            }
+
+            if(headEnd < 0) {
+                scanned = length;
+
+                if(length > MAX_HEAD_SIZE)
+                    reject(431, "Request Header Fields Too Large");
+                return;
+            }
+
+            String transferEncoding = getHeader("transfer-encoding");
+            String contentLength = getHeader("content-length");
+
+            // Only the chunked coding frames the body, as the request parser
+            chunked = transferEncoding != null && !transferEncoding.equalsIgnoreCase("identity");
+            chunkPosition = headEnd;
+            chunkedLength = 0;
+
+            if(chunked && !transferEncoding.toLowerCase().endsWith("chunked")) {
+                reject(501, "Not Implemented");
+                return;
+            }
+
+            long declaredLength;
+
+            if(chunked) {
+                declaredLength = 0;
+            } else {
+                try {
+                    declaredLength = contentLength != null ? Long.parseLong(contentLength.trim()) : 0;
+                } catch (NumberFormatException e) {
+                    declaredLength = -1;
+                }
+            }
+
+            if(declaredLength < 0) {
+                reject(400, "Bad Request");
+                return;
+            } else if(declaredLength > maxBodySize) {
+                reject(413, "Payload Too Large");
+                return;
+            }
+
+            bodyLength = (int) declaredLength;
+        }
+
+        // Chunked body, wait for the last chunk
+        if(chunked) {
+            int bodyEnd = scanChunks();
+
+            if(bodyEnd == -2) {
+                reject(400, "Bad Request");
+                return;
+            } else if(bodyEnd == -3) {
+                reject(413, "Payload Too Large");
+                return;
+            } else if(bodyEnd < 0) {
+                // Framing and trailers are bounded too
+                if(length - headEnd > (long) maxBodySize + MAX_HEAD_SIZE)
+                    reject(413, "Payload Too Large");
+                return;
+            }
+
+            bodyLength = bodyEnd - headEnd;
+        }
+
+        // Wait for the whole body
+        int requestLength = headEnd + bodyLength;
+        if(length < requestLength)
+            return;
+
+        byte[] request = Arrays.copyOf(data, requestLength);
+
+        // Keep any pipelined data for the next request, in the initial buffer if a large request grew it
+        length -= requestLength;
+        if(data.length > INITIAL_SIZE && length <= INITIAL_SIZE) {
+            byte[] remaining = new byte[INITIAL_SIZE];
+            System.arraycopy(data, requestLength, remaining, 0, length);
+            data = remaining;
+        } else {
+            System.arraycopy(data, requestLength, data, 0, length);
+        }
+        scanned = 0;
+        headEnd = -1;
+        bodyLength = 0;
+        chunked = false;
+
+        // Stop reading until the response is sent
+        processing = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+        loop.getServer().dispatch(this, request, ++served);
+    }
+
+    /**
+     * Scan the received chunks, starting from the first chunk not complete yet. The chunks are not decoded, the
+     * request parser will do it once the body is complete
+     * @return The end of the body, -1 if the body is not complete, -2 if the body is malformed, or -3 if the decoded
+     * body is too large
+     */
+    private int scanChunks() {
+        while(true) {
+            int lineEnd = indexOf('\n', chunkPosition);
+            if(lineEnd < 0)
+                return -1;
+
+            // Chunk size, ignoring extensions
+            long size = 0;
+            int digits = 0;
+
+            for(int i = chunkPosition; i < lineEnd && data[i] != ';' && data[i] != '\r'; i++) {
+                int digit = Character.digit(data[i], 16);
+                if(digit < 0 || ++digits > 8)
+                    return -2;
+                size = size * 16 + digit;
+            }
+
+            if(digits == 0)
+                return -2;
+
+            if(size == 0) {
+                // Last chunk, then trailers until an empty line
+                int lineStart = lineEnd + 1;
+
+                while(true) {
+                    lineEnd = indexOf('\n', lineStart);
+                    if(lineEnd < 0)
+                        return -1;
+                    if(lineEnd == lineStart || (lineEnd == lineStart + 1 && data[lineStart] == '\r'))
+                        return lineEnd + 1;
+                    lineStart = lineEnd + 1;
+                }
+            }
+
+            if(chunkedLength + size > maxBodySize)
+                return -3;
+
+            // Chunk data, followed by CRLF
+            long chunkEnd = lineEnd + 1 + size + 2;
+            if(chunkEnd > length)
+                return -1;
+
+            chunkPosition = (int) chunkEnd;
+            chunkedLength += size;
+        }
+    }
+
+    private int indexOf(char c, int from) {
+        for(int i = from; i < length; i++) {
+            if(data[i] == c)
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Return the value of a received header, from the raw head data
+     * @param name The lower case header name
+     * @return The trimmed value, or null if not found
+     */
+    private String getHeader(String name) {
+        int lineStart = 0;
+
+        while(lineStart < headEnd) {
+            int lineEnd = lineStart;
+            while(lineEnd < headEnd && data[lineEnd] != '\n')
+                lineEnd++;
+
+            if(lineEnd - lineStart > name.length() && data[lineStart + name.length()] == ':') {
+                boolean match = true;
+
+                for(int i = 0; i < name.length() && match; i++)
+                    match = Character.toLowerCase((char) data[lineStart + i]) == name.charAt(i);
+
+                if(match)
+                    return new String(data, lineStart + name.length() + 1, lineEnd - lineStart - name.length() - 1,
+                            StandardCharsets.ISO_8859_1).trim();
+            }
+
+            lineStart = lineEnd + 1;
+        }
+
+        return null;
+    }
+
+    /**
+     * Answer directly with an error, without dispatching the request, and close the connection
+     * @param status The error status
+     * @param textStatus The error text status
+     */
+    private void reject(int status, String textStatus) {
+        closeAfterWrite = true;
+
+        byte[] response = (String.format("HTTP/1.1 %d %s\r\nContent-Length: 0\r\nConnection: close\r\n\r\n",
+                status, textStatus)).getBytes(StandardCharsets.ISO_8859_1);
+
+        enqueue(ByteBuffer.wrap(response));
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Write the queued data, as much as the channel accepts
+     * @throws IOException
+     */
+    void onWritable() throws IOException {
+        ByteBuffer buffer;
+
+        while((buffer = outbound.peek()) != null) {
+            HttpMetrics.getInstance().addBytesSent(channel.write(buffer));
+
+            if(buffer.hasRemaining())
+                break; // Socket buffer is full
+
+            outbound.poll();
+            outputStream.release(outboundBytes.addAndGet(-buffer.limit()));
+        }
+
+        lastActivity = System.currentTimeMillis();
+
+        if(outbound.isEmpty()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+            if(!processing)
+                afterResponse();
+        }
+    }
+
+    /**
+     * Called once the response is entirely written. Either close the connection, or resume reading
+     */
+    private void afterResponse() {
+        if(closeAfterWrite) {
+            close();
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            parse(); // Pipelined request
+        }
+    }
+
+    /**
+     * Queue data to write. Called by the worker thread
+     * @param buffer The data to write
+     * @return The number of bytes waiting to be written
+     */
+    long enqueue(ByteBuffer buffer) {
+        outbound.add(buffer);
+        return outboundBytes.addAndGet(buffer.limit());
+    }
+
+    /**
+     * Ask the loop to write the queued data
+     */
+    void enableWrite() {
+        loop.execute(() -> {
+            if(key.isValid())
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        });
+    }
+
+    /**
+     * Called by the worker thread once the response is generated
+     * @param keepAlive True if the connection should be kept open
+     */
+    void responseDone(boolean keepAlive) {
+        loop.execute(() -> {
+            processing = false;
+            closeAfterWrite = !keepAlive || served >= loop.getServer().getKeepAliveMaxRequests();
+
+            if(closed)
+                return;
+
+            if(outbound.isEmpty())
+                afterResponse();
+            else
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        });
+    }
+
+    /**
+     * Check if the connection is idle since the provided timeout. A connection waiting for its service is not idle,
+     * but one waiting for its client to read the response is
+     * @param now The current time
+     * @param timeout The timeout, in ms
+     * @return True if the connection is idle
+     */
+    boolean isIdle(long now, int timeout) {
+        if(processing && outbound.isEmpty())
+            return false;
+
+        return now - lastActivity > timeout;
+    }
+
+    void close() {
+        if(closed)
+            return;
+
+        closed = true;
+        HttpMetrics.getInstance().connectionClosed();
+        key.cancel();
+        loop.unregister(this);
+        outputStream.release(0);
+
+        try {
+            channel.close();
+        } catch (IOException e) {}
+    }
+
+    long getPendingBytes() {
+        return outboundBytes.get();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    NioOutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    InetAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    int getLocalPort() {
+        return localPort;
+    }
+}
@@ -0,0 +1,133 @@
+package fr.vuzi.http.impl.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector loop, owning a set of connections. All the connections state changes are performed on the loop thread,
+ * other threads submit them as tasks
+ */
+class NioEventLoop implements Runnable {
+
+    private static Logger logger = Logger.getLogger(NioEventLoop.class.getCanonicalName());
+
+    private static final int READ_BUFFER_SIZE = 16384;
+
+    private final HttpNioServer server;
+    private final Selector selector;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<NioConnection> connections = new HashSet<>();
+
+    // Shared by all the connections of the loop, as they are only read on the loop thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    private long lastIdleCheck = System.currentTimeMillis();
+
+    NioEventLoop(HttpNioServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Register a new connection on the loop
+     * @param channel The client channel, in non-blocking mode
+     */
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioConnection connection = new NioConnection(this, channel, key);
+
+                key.attach(connection);
+                connections.add(connection);
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Channel registration failed", e);
+                try {
+                    channel.close();
+                } catch (IOException closeExcept) {}
+            }
+        });
+    }
+
+    /**
+     * Execute the provided task on the loop thread
+     * @param task The task to execute
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            try {
+                selector.select(1000);
+
+                // Pending tasks
+                Runnable task;
+                while((task = tasks.poll()) != null)
+                    task.run();
+
+                // Ready connections
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    NioConnection connection = (NioConnection) key.attachment();
+
+                    try {
+                        if(key.isValid() && key.isReadable())
+                            connection.onReadable(readBuffer);
+                        if(key.isValid() && key.isWritable())
+                            connection.onWritable();
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+
+                closeIdleConnections();
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Unhandled error in selector loop", e);
+            }
+        }
+    }
+
+    /**
+     * Close the connections without any activity since the keep alive timeout
+     */
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+
+        if(now - lastIdleCheck < 1000)
+            return;
+
+        lastIdleCheck = now;
+
+        for(NioConnection connection : new HashSet<>(connections)) {
+            if(connection.isIdle(now, server.getKeepAliveTimeout()))
+                connection.close();
+        }
+    }
+
+    void unregister(NioConnection connection) {
+        connections.remove(connection);
+    }
+
+    HttpNioServer getServer() {
+        return server;
+    }
+}
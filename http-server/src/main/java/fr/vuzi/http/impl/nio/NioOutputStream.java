@@ -0,0 +1,110 @@
+package fr.vuzi.http.impl.nio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Output stream queuing the written data to its connection. The writing thread is blocked while too much data is
+ * waiting, so a slow client throttles the service instead of filling the memory
+ */
+class NioOutputStream extends OutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final long HIGH_WATER_MARK = 262144; // 256Ko
+    private static final long LOW_WATER_MARK = 65536; // 64Ko
+
+    private final NioConnection connection;
+    private final Object lock = new Object();
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int count = 0;
+
+    NioOutputStream(NioConnection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if(count >= buffer.length)
+            push();
+
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(len >= BUFFER_SIZE) {
+            push();
+            queue(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+            return;
+        }
+
+        if(count + len > buffer.length)
+            push();
+
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        push();
+        connection.enableWrite();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * Queue the buffered data
+     * @throws IOException If the connection is closed
+     */
+    private void push() throws IOException {
+        if(count == 0)
+            return;
+
+        ByteBuffer data = ByteBuffer.wrap(buffer, 0, count);
+        buffer = new byte[BUFFER_SIZE];
+        count = 0;
+
+        queue(data);
+    }
+
+    private void queue(ByteBuffer data) throws IOException {
+        if(connection.isClosed())
+            throw new IOException("Connection closed");
+
+        if(connection.enqueue(data) < HIGH_WATER_MARK)
+            return;
+
+        // Too much pending data, wait for the client to read it
+        connection.enableWrite();
+
+        synchronized (lock) {
+            while(!connection.isClosed() && connection.getPendingBytes() > LOW_WATER_MARK) {
+                try {
+                    lock.wait(1000);
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while waiting for the client", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by the loop when queued data is written
+     * @param pending The number of bytes still waiting
+     */
+    void release(long pending) {
+        if(pending > LOW_WATER_MARK)
+            return;
+
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+}
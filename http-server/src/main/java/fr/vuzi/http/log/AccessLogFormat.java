@@ -0,0 +1,173 @@
+package fr.vuzi.http.log;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Layout of the access log lines, using the Apache directives : %h (client address), %l and %u (always -), %t
+ * (time), %r (request line), %m (method), %U (path), %H (protocol), %v (host), %s (status), %b (body length, or -),
+ * %B (body length, or 0), %D (processing time in microseconds), %T (processing time in seconds), %{Name}i (request
+ * header) and %%. The "common" and "combined" names are accepted for the usual formats. Only used by the writer
+ * thread
+ */
+public class AccessLogFormat {
+
+    public static final String COMMON = "%h %l %u %t \"%r\" %s %b";
+    public static final String COMBINED = COMMON + " \"%{Referer}i\" \"%{User-Agent}i\"";
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("'['dd/MMM/yyyy:HH:mm:ss Z']'", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final List<Token> tokens = new ArrayList<>();
+
+    private long cachedSecond = -1;
+    private String cachedTime;
+
+    /**
+     * Parse a format
+     * @param format The format, "common" or "combined"
+     * @throws IllegalArgumentException If the format contains an unknown directive
+     */
+    public AccessLogFormat(String format) {
+        if("common".equals(format))
+            format = COMMON;
+        else if("combined".equals(format))
+            format = COMBINED;
+
+        StringBuilder literal = new StringBuilder();
+
+        for(int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+
+            if(c != '%' || i + 1 >= format.length()) {
+                literal.append(c);
+                continue;
+            }
+
+            char directive = format.charAt(++i);
+            if(directive == '%') {
+                literal.append('%');
+                continue;
+            }
+
+            if(literal.length() > 0) {
+                String text = literal.toString();
+                tokens.add((record, sb) -> sb.append(text));
+                literal.setLength(0);
+            }
+
+            if(directive == '{') {
+                int end = format.indexOf('}', i);
+                if(end < 0 || end + 1 >= format.length() || format.charAt(end + 1) != 'i')
+                    throw new IllegalArgumentException("Invalid access log directive at " + i + " : " + format);
+
+                String header = format.substring(i + 1, end).toLowerCase();
+                tokens.add((record, sb) -> appendValue(sb, record.headers != null ? record.headers.get(header) : null));
+                i = end + 1;
+            } else {
+                tokens.add(directive(directive));
+            }
+        }
+
+        if(literal.length() > 0) {
+            String text = literal.toString();
+            tokens.add((record, sb) -> sb.append(text));
+        }
+    }
+
+    private Token directive(char directive) {
+        switch (directive) {
+            case 'h':
+                return (record, sb) -> appendValue(sb, record.clientAddress != null ?
+                        record.clientAddress.getHostAddress() : null);
+            case 'l':
+            case 'u':
+                return (record, sb) -> sb.append('-');
+            case 't':
+                return (record, sb) -> sb.append(formatTime(record.time));
+            case 'r':
+                return (record, sb) -> {
+                    appendValue(sb, record.method);
+                    sb.append(' ');
+                    appendValue(sb, record.location);
+                    sb.append(' ');
+                    appendValue(sb, record.protocol);
+                };
+            case 'm':
+                return (record, sb) -> appendValue(sb, record.method);
+            case 'U':
+                return (record, sb) -> appendValue(sb, record.location);
+            case 'H':
+                return (record, sb) -> appendValue(sb, record.protocol);
+            case 'v':
+                return (record, sb) -> appendValue(sb, record.hostname);
+            case 's':
+                return (record, sb) -> sb.append(record.status);
+            case 'b':
+                return (record, sb) -> appendValue(sb, record.length);
+            case 'B':
+                return (record, sb) -> sb.append(record.length != null ? record.length : "0");
+            case 'D':
+                return (record, sb) -> sb.append(record.duration / 1000);
+            case 'T':
+                return (record, sb) -> sb.append(record.duration / 1000000000);
+            default:
+                throw new IllegalArgumentException("Unknown access log directive %" + directive);
+        }
+    }
+
+    /**
+     * Append the formatted record, without line separator
+     * @param record The record
+     * @param sb The output
+     */
+    void format(AccessLogRecord record, StringBuilder sb) {
+        for(Token token : tokens)
+            token.append(record, sb);
+    }
+
+    /**
+     * Format the time, reusing the previous value within the same second
+     * @param time The time, in ms since the epoch
+     * @return The formatted time
+     */
+    private String formatTime(long time) {
+        long second = time / 1000;
+
+        if(second != cachedSecond) {
+            cachedTime = TIME_FORMAT.format(Instant.ofEpochSecond(second));
+            cachedSecond = second;
+        }
+
+        return cachedTime;
+    }
+
+    /**
+     * Append a value, escaping the quotes and control characters sent by the client
+     */
+    private static void appendValue(StringBuilder sb, String value) {
+        if(value == null || value.isEmpty()) {
+            sb.append('-');
+            return;
+        }
+
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if(c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if(c < 0x20 || c == 0x7f)
+                sb.append(String.format("\\x%02x", (int) c));
+            else
+                sb.append(c);
+        }
+    }
+
+    private interface Token {
+        void append(AccessLogRecord record, StringBuilder sb);
+    }
+}
@@ -0,0 +1,43 @@
+package fr.vuzi.http.log;
+
+import java.net.InetAddress;
+import java.util.Map;
+
+/**
+ * Slot of the access log ring buffer. Slots are allocated once and reused : the request thread only copies
+ * references and numbers into it, and the formatting is done by the writer thread
+ */
+class AccessLogRecord {
+
+    /** Position of the ring expected by the next operation on the slot, see {@link AccessLogRing} */
+    volatile long sequence;
+    long position;
+
+    long time;
+    long duration;
+    InetAddress clientAddress;
+    String method;
+    String hostname;
+    String location;
+    String protocol;
+    Map<String, String> headers;
+    int status;
+    String length;
+
+    AccessLogRecord(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Release the references, so the request isn't kept alive by the ring
+     */
+    void clear() {
+        clientAddress = null;
+        method = null;
+        hostname = null;
+        location = null;
+        protocol = null;
+        headers = null;
+        length = null;
+    }
+}
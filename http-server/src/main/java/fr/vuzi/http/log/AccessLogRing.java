@@ -0,0 +1,84 @@
+package fr.vuzi.http.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free ring buffer of access log records, with any number of producers and a single consumer. Each
+ * slot holds the ring position it expects next : a producer claims the slot of the tail position with a CAS and
+ * publishes it by advancing its sequence, and the consumer frees it for the next lap once formatted. When the ring
+ * is full, the record is dropped instead of waiting
+ */
+class AccessLogRing {
+
+    private final AccessLogRecord[] records;
+    private final int mask;
+
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0; // Only used by the consumer
+
+    /**
+     * Create a new ring
+     * @param capacity The number of slots, rounded up to a power of two
+     */
+    AccessLogRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+        this.records = new AccessLogRecord[size];
+        this.mask = size - 1;
+
+        for(int i = 0; i < size; i++)
+            records[i] = new AccessLogRecord(i);
+    }
+
+    /**
+     * Claim a free slot, to be filled then published
+     * @return The slot, or null if the ring is full
+     */
+    AccessLogRecord claim() {
+        long position = tail.get();
+
+        while(true) {
+            AccessLogRecord record = records[(int) position & mask];
+            long sequence = record.sequence;
+
+            if(sequence == position) {
+                if(tail.compareAndSet(position, position + 1)) {
+                    record.position = position;
+                    return record;
+                }
+            } else if(sequence < position) {
+                return null; // Not yet consumed since the previous lap
+            }
+
+            position = tail.get();
+        }
+    }
+
+    /**
+     * Make a filled slot visible to the consumer
+     * @param record The slot
+     */
+    void publish(AccessLogRecord record) {
+        record.sequence = record.position + 1;
+    }
+
+    /**
+     * Return the next published slot, to be released once consumed
+     * @return The slot, or null if none is published
+     */
+    AccessLogRecord peek() {
+        AccessLogRecord record = records[(int) head & mask];
+
+        return record.sequence == head + 1 ? record : null;
+    }
+
+    /**
+     * Release the slot returned by peek, for the next lap
+     * @param record The slot
+     */
+    void release(AccessLogRecord record) {
+        record.clear();
+        record.sequence = head + records.length;
+        head++;
+    }
+}
@@ -0,0 +1,219 @@
+package fr.vuzi.http.log;
+
+import fr.vuzi.http.request.IHttpRequest;
+import fr.vuzi.http.request.IHttpResponse;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous access log. The request threads only copy the request information into a slot of a lock-free ring
+ * buffer, and a writer thread formats the records and appends them by batches to the log file, rotating it once it
+ * reaches the configured size. When the writer can't keep up and the ring is full, the records are dropped and
+ * counted, instead of slowing down the requests
+ */
+public class HttpAccessLog {
+
+    private static Logger logger = Logger.getLogger(HttpAccessLog.class.getCanonicalName());
+
+    private static final int MAX_BATCH = 1024;
+
+    private final Path path;
+    private final AccessLogFormat format;
+    private final AccessLogRing ring;
+    private final long rotateSize;
+    private final int rotateFiles;
+    private final long interval;
+
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported = 0;
+
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private FileChannel channel;
+    private long fileSize;
+
+    /**
+     * Create the access log and start its writer thread
+     * @param path The log file
+     * @param format The line format, see {@link AccessLogFormat}
+     * @param capacity The number of records waiting to be written before dropping
+     * @param rotateSize The size of the file before rotation in bytes, or 0 to never rotate
+     * @param rotateFiles The number of rotated files kept, as path.1 to path.N
+     * @param interval The delay between two checks of the ring when it is empty, in ms
+     * @throws IOException If the file can't be opened
+     */
+    public HttpAccessLog(String path, String format, int capacity, long rotateSize, int rotateFiles, long interval)
+            throws IOException {
+        this.path = Paths.get(path);
+        this.format = new AccessLogFormat(format);
+        this.ring = new AccessLogRing(capacity);
+        this.rotateSize = rotateSize;
+        this.rotateFiles = rotateFiles;
+        this.interval = TimeUnit.MILLISECONDS.toNanos(Math.max(1, interval));
+
+        open();
+
+        writer = new Thread(this::run, "http-access-log");
+        writer.setDaemon(true);
+        writer.start();
+
+        // Write the pending records on exit
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Record a served request. Never blocks : the record is dropped if the writer is late
+     * @param request The request
+     * @param response The response
+     * @param duration The processing time, in ns
+     */
+    public void log(IHttpRequest request, IHttpResponse response, long duration) {
+        AccessLogRecord record = ring.claim();
+
+        if(record == null) {
+            dropped.increment();
+            return;
+        }
+
+        record.time = System.currentTimeMillis();
+        record.duration = duration;
+        record.clientAddress = request.getClientAddress();
+        record.method = request.getMethod();
+        record.hostname = request.getHostname();
+        record.location = request.getLocation();
+        record.protocol = request.getProtocol();
+        record.headers = request.getHeaders();
+        record.status = response.getStatus();
+        record.length = response.getHeaders().get("content-length");
+
+        ring.publish(record);
+    }
+
+    /**
+     * Return the number of records dropped because the ring was full
+     * @return The number of dropped records
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stop the writer thread, once the pending records are written
+     */
+    public void close() {
+        if(!running)
+            return;
+
+        running = false;
+        LockSupport.unpark(writer);
+
+        try {
+            writer.join(TimeUnit.NANOSECONDS.toMillis(interval) + 5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        StringBuilder batch = new StringBuilder(MAX_BATCH * 128);
+
+        while(true) {
+            int count = 0;
+            AccessLogRecord record;
+
+            while(count < MAX_BATCH && (record = ring.peek()) != null) {
+                format.format(record, batch);
+                batch.append('\n');
+                ring.release(record);
+                count++;
+            }
+
+            if(count > 0) {
+                write(batch);
+                batch.setLength(0);
+            } else if(running) {
+                reportDropped();
+                LockSupport.parkNanos(this, interval);
+            } else {
+                break;
+            }
+        }
+
+        reportDropped();
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Access log closing failed", e);
+        }
+    }
+
+    private void write(StringBuilder batch) {
+        ByteBuffer buffer = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+
+        try {
+            while(buffer.hasRemaining())
+                fileSize += channel.write(buffer);
+
+            if(rotateSize > 0 && fileSize >= rotateSize)
+                rotate();
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Access log writing failed", e);
+        }
+    }
+
+    private void reportDropped() {
+        long total = dropped.sum();
+
+        if(total > droppedReported) {
+            logger.warning(String.format("%d access log records dropped, the log can't keep up with the requests",
+                    total - droppedReported));
+            droppedReported = total;
+        }
+    }
+
+    private void open() throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        if(parent != null)
+            Files.createDirectories(parent);
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileSize = channel.size();
+    }
+
+    /**
+     * Rotate the log file : path.N-1 is renamed to path.N, down to path renamed to path.1, and a new file is opened
+     * @throws IOException
+     */
+    private void rotate() throws IOException {
+        channel.close();
+
+        for(int i = rotateFiles - 1; i >= 1; i--) {
+            Path rotated = Paths.get(path + "." + i);
+            if(Files.exists(rotated))
+                Files.move(rotated, Paths.get(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        if(rotateFiles > 0)
+            Files.move(path, Paths.get(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        else
+            Files.delete(path);
+
+        open();
+    }
+}
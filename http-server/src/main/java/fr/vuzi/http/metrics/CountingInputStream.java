@@ -0,0 +1,36 @@
+package fr.vuzi.http.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream adding the bytes read to the received bytes of the metrics
+ */
+public class CountingInputStream extends FilterInputStream {
+
+    private final HttpMetrics metrics;
+
+    public CountingInputStream(InputStream in, HttpMetrics metrics) {
+        super(in);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if(b >= 0)
+            metrics.addBytesReceived(1);
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int byteRead = in.read(b, off, len);
+        if(byteRead > 0)
+            metrics.addBytesReceived(byteRead);
+
+        return byteRead;
+    }
+}
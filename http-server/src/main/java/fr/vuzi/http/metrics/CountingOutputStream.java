@@ -0,0 +1,30 @@
+package fr.vuzi.http.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream adding the bytes written to the sent bytes of the metrics
+ */
+public class CountingOutputStream extends FilterOutputStream {
+
+    private final HttpMetrics metrics;
+
+    public CountingOutputStream(OutputStream out, HttpMetrics metrics) {
+        super(out);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        metrics.addBytesSent(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        metrics.addBytesSent(len);
+    }
+}
@@ -0,0 +1,193 @@
+package fr.vuzi.http.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of the server : request latencies per virtual host, route and status class, queueing delays, bytes
+ * received and sent, and active connections. Recording only touches lock-free counters, and the metrics are
+ * rendered in the Prometheus text format when requested
+ */
+public class HttpMetrics {
+
+    private static final HttpMetrics instance = new HttpMetrics();
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final Map<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder shedRequests = new LongAdder();
+
+    private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+
+    /**
+     * Return the metrics of the server
+     * @return The metrics
+     */
+    public static HttpMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * Return the metrics of a route, to be kept by the caller so recording doesn't need any lookup
+     * @param vhost The virtual host name
+     * @param route The route name
+     * @return The route metrics
+     */
+    public RouteMetrics getRouteMetrics(String vhost, String route) {
+        return routes.computeIfAbsent(vhost + '\0' + route, k -> new RouteMetrics(vhost, route));
+    }
+
+    /**
+     * Record the time a request, or a connection, waited for a worker
+     * @param nanos The queueing delay, in ns
+     */
+    public void recordQueueWait(long nanos) {
+        queueWait.record(nanos);
+    }
+
+    public void addBytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    public void addBytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    public void connectionOpened() {
+        activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    public void requestShed() {
+        shedRequests.increment();
+    }
+
+    /**
+     * Register a value read when the metrics are rendered
+     * @param name The metric name
+     * @param help The metric description
+     * @param value The value supplier
+     */
+    public void registerGauge(String name, String help, LongSupplier value) {
+        gauges.put(name, new Gauge(help, value));
+    }
+
+    /**
+     * Render the metrics in the Prometheus text format
+     * @return The metrics
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+
+        header(sb, "http_request_duration_seconds", "Request processing time", "summary");
+        for(RouteMetrics route : routes.values()) {
+            for(int i = 0; i < route.histograms.length(); i++) {
+                LatencyHistogram histogram = route.histograms.get(i);
+
+                if(histogram != null) {
+                    summary(sb, "http_request_duration_seconds", histogram, "vhost=\"" + escape(route.vhost) +
+                            "\",route=\"" + escape(route.route) + "\",status=\"" + (i + 1) + "xx\"");
+                }
+            }
+        }
+
+        header(sb, "http_queue_wait_seconds", "Time waited for a worker", "summary");
+        summary(sb, "http_queue_wait_seconds", queueWait, null);
+
+        counter(sb, "http_received_bytes_total", "Bytes received", bytesReceived.sum());
+        counter(sb, "http_sent_bytes_total", "Bytes sent", bytesSent.sum());
+        counter(sb, "http_shed_requests_total", "Requests rejected by the admission control", shedRequests.sum());
+
+        header(sb, "http_connections_active", "Open connections", "gauge");
+        sb.append("http_connections_active ").append(activeConnections.sum()).append('\n');
+
+        for(Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            header(sb, gauge.getKey(), gauge.getValue().help, "gauge");
+            sb.append(gauge.getKey()).append(' ').append(gauge.getValue().value.getAsLong()).append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "counter");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, LatencyHistogram histogram, String labels) {
+        long[] values = histogram.getQuantiles(QUANTILES);
+        String prefix = labels != null ? labels + "," : "";
+
+        for(int i = 0; i < QUANTILES.length; i++) {
+            sb.append(name).append('{').append(prefix).append("quantile=\"").append(QUANTILES[i]).append("\"} ")
+                    .append(values[i] / 1e6).append('\n');
+        }
+
+        sb.append(name).append("_sum").append(labels != null ? "{" + labels + "}" : "").append(' ')
+                .append(histogram.getSum() / 1e6).append('\n');
+        sb.append(name).append("_count").append(labels != null ? "{" + labels + "}" : "").append(' ')
+                .append(histogram.getCount()).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Latencies of a route, by status class
+     */
+    public static class RouteMetrics {
+        private final String vhost;
+        private final String route;
+        private final AtomicReferenceArray<LatencyHistogram> histograms = new AtomicReferenceArray<>(5);
+
+        RouteMetrics(String vhost, String route) {
+            this.vhost = vhost;
+            this.route = route;
+        }
+
+        /**
+         * Record a served request
+         * @param status The response status
+         * @param nanos The processing time, in ns
+         */
+        public void record(int status, long nanos) {
+            int statusClass = Math.max(1, Math.min(5, status / 100)) - 1;
+            LatencyHistogram histogram = histograms.get(statusClass);
+
+            if(histogram == null) {
+                histograms.compareAndSet(statusClass, null, new LatencyHistogram());
+                histogram = histograms.get(statusClass);
+            }
+
+            histogram.record(nanos);
+        }
+    }
+
+    private static class Gauge {
+        private final String help;
+        private final LongSupplier value;
+
+        Gauge(String help, LongSupplier value) {
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
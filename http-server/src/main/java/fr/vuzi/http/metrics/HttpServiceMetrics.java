@@ -0,0 +1,30 @@
+package fr.vuzi.http.metrics;
+
+import fr.vuzi.http.error.HttpException;
+import fr.vuzi.http.request.IHttpRequest;
+import fr.vuzi.http.request.IHttpResponse;
+import fr.vuzi.http.service.IHttpService;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Service exposing the server metrics in the Prometheus text format. It should be routed on an admin virtual host or
+ * port, like any other service
+ */
+public class HttpServiceMetrics implements IHttpService {
+
+    public HttpServiceMetrics(Map<String, String> parameters) {
+    }
+
+    @Override
+    public void serve(IHttpRequest request, IHttpResponse response) throws HttpException {
+        if(!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod()))
+            throw new HttpException(405, "Method not allowed");
+
+        response.setStatus(200);
+        response.setHeader("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        response.setHeader("Cache-Control", "no-store");
+        response.setBody(HttpMetrics.getInstance().toPrometheus().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,102 @@
+package fr.vuzi.http.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the manner of HdrHistogram : each power of two is split
+ * into 32 buckets, so the recorded values keep a relative precision of about 3% over the whole range. Recording only
+ * increments a counter, and the percentiles are computed when read
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40; // 2^40 microseconds, about 12 days
+
+    private final AtomicLongArray counts = new AtomicLongArray(SUB_BUCKETS * (MAX_EXPONENT - SUB_BUCKET_BITS + 2));
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Record a duration
+     * @param nanos The duration, in ns
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+
+        counts.incrementAndGet(indexOf(micros));
+        count.increment();
+        sum.add(micros);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Return the sum of the recorded durations
+     * @return The sum, in microseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Return the value under which the provided ratio of the recorded values are
+     * @param quantile The ratio, between 0 and 1
+     * @return The value, in microseconds, or 0 if nothing is recorded
+     */
+    public long getQuantile(double quantile) {
+        return getQuantiles(quantile)[0];
+    }
+
+    /**
+     * Return the values of several quantiles, from a single pass over the buckets
+     * @param quantiles The ratios, between 0 and 1, in ascending order
+     * @return The values, in microseconds
+     */
+    public long[] getQuantiles(double... quantiles) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+
+        for(int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+
+        long[] values = new long[quantiles.length];
+        long seen = 0;
+        int q = 0;
+
+        for(int i = 0; i < snapshot.length && q < quantiles.length && total > 0; i++) {
+            seen += snapshot[i];
+
+            while(q < quantiles.length && seen >= Math.max(1, (long) Math.ceil(quantiles[q] * total)))
+                values[q++] = highestValueOf(i);
+        }
+
+        return values;
+    }
+
+    private static int indexOf(long value) {
+        if(value < SUB_BUCKETS)
+            return (int) value;
+
+        int exponent = Math.min(MAX_EXPONENT, 63 - Long.numberOfLeadingZeros(value));
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) Math.min(SUB_BUCKETS - 1, (value >>> shift) - SUB_BUCKETS);
+
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestValueOf(int index) {
+        if(index < SUB_BUCKETS)
+            return index;
+
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,134 @@
+package fr.vuzi.http.request;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream decoding a body sent with the chunked transfer encoding. The trailers are read and ignored. Closing
+ * this stream leaves the underlying stream open
+ */
+public class ChunkedInputStream extends FilterInputStream {
+
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private long chunkRemaining = 0;
+    private boolean finished = false;
+
+    public ChunkedInputStream(InputStream inputStream) {
+        super(inputStream);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0)
+            return 0;
+
+        if(chunkRemaining == 0 && !nextChunk())
+            return -1;
+
+        int byteRead = in.read(b, off, (int) Math.min(len, chunkRemaining));
+        if(byteRead < 0)
+            throw new IOException("Unexpected end of chunked body");
+
+        chunkRemaining -= byteRead;
+
+        if(chunkRemaining == 0)
+            readLine(); // CRLF ending the chunk
+
+        return byteRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+
+        while(skipped < n) {
+            int byteRead = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+            if(byteRead < 0)
+                break;
+            skipped += byteRead;
+        }
+
+        return skipped;
+    }
+
+    /**
+     * Read the next chunk size
+     * @return False if the last chunk is reached
+     * @throws IOException
+     */
+    private boolean nextChunk() throws IOException {
+        if(finished)
+            return false;
+
+        String line = readLine();
+        int extension = line.indexOf(';');
+        if(extension >= 0)
+            line = line.substring(0, extension);
+
+        try {
+            chunkRemaining = Long.parseLong(line.trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed chunk size: " + line);
+        }
+
+        if(chunkRemaining < 0)
+            throw new IOException("Malformed chunk size: " + line);
+
+        if(chunkRemaining == 0) {
+            // Trailers, until an empty line
+            while(!readLine().isEmpty());
+            finished = true;
+            return false;
+        }
+
+        return true;
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+
+        while((b = in.read()) != '\n') {
+            if(b < 0)
+                throw new IOException("Unexpected end of chunked body");
+            if(sb.length() >= MAX_LINE_LENGTH)
+                throw new IOException("Chunk line too long");
+            if(b != '\r')
+                sb.append((char) b);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Return true if the whole body, including the trailers, has been read
+     * @return True if the body is finished
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), chunkRemaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The underlying stream belongs to the connection
+    }
+}
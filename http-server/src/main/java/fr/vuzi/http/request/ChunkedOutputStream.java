@@ -0,0 +1,50 @@
+package fr.vuzi.http.request;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream applying the HTTP/1.1 chunked transfer encoding. Closing this stream writes the last chunk but
+ * leaves the underlying stream open, so the connection can be reused
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+    private boolean closed = false;
+
+    public ChunkedOutputStream(OutputStream outputStream) {
+        super(outputStream);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(closed)
+            throw new IOException("Chunked stream already closed");
+
+        if(len <= 0)
+            return; // An empty chunk would end the body
+
+        out.write(Integer.toHexString(len).getBytes("US-ASCII"));
+        out.write(CRLF);
+        out.write(b, off, len);
+        out.write(CRLF);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed)
+            return;
+
+        closed = true;
+        out.write(LAST_CHUNK);
+        out.flush();
+    }
+}
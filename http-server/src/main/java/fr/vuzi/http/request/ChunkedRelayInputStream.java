@@ -0,0 +1,140 @@
+package fr.vuzi.http.request;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Input stream returning a body sent with the chunked transfer encoding as is, chunk headers and trailers included,
+ * and ending with the body. Used to relay a chunked body without decoding and encoding it again. Closing this stream
+ * leaves the underlying stream open
+ */
+public class ChunkedRelayInputStream extends FilterInputStream {
+
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private final byte[] head = new byte[MAX_LINE_LENGTH];
+    private int headPosition = 0;
+    private int headLimit = 0;
+
+    private long chunkRemaining = 0; // Including the CRLF ending the chunk
+    private boolean finished = false;
+
+    public ChunkedRelayInputStream(InputStream inputStream) {
+        super(inputStream);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0)
+            return 0;
+
+        if(headPosition == headLimit && chunkRemaining == 0) {
+            if(finished)
+                return -1;
+
+            nextChunk();
+        }
+
+        // Chunk header first, then the chunk data
+        if(headPosition < headLimit) {
+            int count = Math.min(len, headLimit - headPosition);
+            System.arraycopy(head, headPosition, b, off, count);
+            headPosition += count;
+            return count;
+        }
+
+        int byteRead = in.read(b, off, (int) Math.min(len, chunkRemaining));
+        if(byteRead < 0)
+            throw new IOException("Unexpected end of chunked body");
+
+        chunkRemaining -= byteRead;
+        return byteRead;
+    }
+
+    /**
+     * Read the next chunk header, or the trailers after the last chunk
+     * @throws IOException
+     */
+    private void nextChunk() throws IOException {
+        headPosition = 0;
+        headLimit = 0;
+
+        int lineEnd = readLine();
+        String line = new String(head, 0, lineEnd, StandardCharsets.ISO_8859_1);
+        int extension = line.indexOf(';');
+        if(extension >= 0)
+            line = line.substring(0, extension);
+
+        long size;
+
+        try {
+            size = Long.parseLong(line.trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed chunk size: " + line);
+        }
+
+        if(size < 0)
+            throw new IOException("Malformed chunk size: " + line);
+
+        if(size == 0) {
+            // Trailers, until an empty line
+            while(readLine() > 0);
+            finished = true;
+        } else {
+            chunkRemaining = size + 2;
+        }
+    }
+
+    /**
+     * Append the next line to the chunk header
+     * @return The length of the line, without its line ending
+     * @throws IOException
+     */
+    private int readLine() throws IOException {
+        int start = headLimit;
+        int b;
+
+        do {
+            b = in.read();
+
+            if(b < 0)
+                throw new IOException("Unexpected end of chunked body");
+            if(headLimit >= head.length)
+                throw new IOException("Chunk line too long");
+
+            head[headLimit++] = (byte) b;
+        } while(b != '\n');
+
+        int end = headLimit - 1;
+        if(end > start && head[end - 1] == '\r')
+            end--;
+
+        return end - start;
+    }
+
+    /**
+     * Return true if the whole body, including the trailers, has been read
+     * @return True if the body is finished
+     */
+    public boolean isFinished() {
+        return finished && headPosition == headLimit;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The underlying stream belongs to the connection
+    }
+}
@@ -0,0 +1,75 @@
+package fr.vuzi.http.request;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream limited to a fixed number of bytes of the underlying stream, for bodies with a content length.
+ * Closing this stream leaves the underlying stream open
+ */
+public class ContentLengthInputStream extends FilterInputStream {
+
+    private long remaining;
+
+    public ContentLengthInputStream(InputStream inputStream, long length) {
+        super(inputStream);
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(remaining <= 0)
+            return -1;
+
+        int b = in.read();
+        if(b < 0)
+            throw new IOException("Body shorter than its content-length");
+
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(remaining <= 0)
+            return -1;
+
+        int byteRead = in.read(b, off, (int) Math.min(len, remaining));
+        if(byteRead < 0)
+            throw new IOException("Body shorter than its content-length");
+
+        remaining -= byteRead;
+        return byteRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    /**
+     * Return the number of bytes not read yet
+     * @return The remaining length
+     */
+    public long getRemaining() {
+        return remaining;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The underlying stream belongs to the connection
+    }
+}
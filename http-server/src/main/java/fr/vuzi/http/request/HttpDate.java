@@ -0,0 +1,99 @@
+package fr.vuzi.http.request;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.util.Locale;
+
+/**
+ * HTTP dates (RFC 7231), formatted and parsed with immutable formatters, so they can be used by any number of
+ * threads at once. As dates have a second precision, the current date is only formatted once per second
+ */
+public class HttpDate {
+
+    private static final DateTimeFormatter IMF_FIXDATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    // Obsolete formats, still to be accepted
+    private static final DateTimeFormatter RFC_850 = new DateTimeFormatterBuilder()
+            .appendPattern("EEEE, dd-MMM-")
+            .appendValueReduced(ChronoField.YEAR, 2, 2, LocalDate.now().minusYears(50)) // Within 50 years of now
+            .appendPattern(" HH:mm:ss 'GMT'")
+            .toFormatter(Locale.US);
+    private static final DateTimeFormatter ASCTIME =
+            DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US);
+
+    private static volatile FormattedDate current = new FormattedDate(Long.MIN_VALUE, null);
+
+    /**
+     * Format a date
+     * @param time The date, in ms since the epoch
+     * @return The formatted date
+     */
+    public static String format(long time) {
+        return IMF_FIXDATE.format(Instant.ofEpochMilli(time));
+    }
+
+    /**
+     * Return the current date, formatted for the Date header
+     * @return The formatted date
+     */
+    public static String now() {
+        long second = System.currentTimeMillis() / 1000;
+        FormattedDate formatted = current;
+
+        // Formatted by the first thread of each second. Concurrent threads may format it too, which is harmless
+        if(formatted.second != second) {
+            formatted = new FormattedDate(second, IMF_FIXDATE.format(Instant.ofEpochSecond(second)));
+            current = formatted;
+        }
+
+        return formatted.value;
+    }
+
+    /**
+     * Parse a date, in the IMF-fixdate format or in one of the obsolete formats
+     * @param date The date, may be null
+     * @return The date in ms since the epoch, or -1 if the date is missing or invalid
+     */
+    public static long parse(String date) {
+        if(date == null)
+            return -1;
+
+        date = date.trim();
+
+        try {
+            // Also accepts the single digit days
+            return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(date)).toEpochMilli();
+        } catch (DateTimeException e) {
+            // Try the obsolete formats
+        }
+
+        for(DateTimeFormatter formatter : new DateTimeFormatter[] { RFC_850, ASCTIME }) {
+            try {
+                TemporalAccessor parsed = formatter.parse(date);
+                return LocalDateTime.from(parsed).toInstant(ZoneOffset.UTC).toEpochMilli();
+            } catch (DateTimeException e) {
+                // Try the next format
+            }
+        }
+
+        return -1;
+    }
+
+    private static class FormattedDate {
+        private final long second;
+        private final String value;
+
+        FormattedDate(long second, String value) {
+            this.second = second;
+            this.value = value;
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package fr.vuzi.http.request;
 
+import fr.vuzi.http.compression.BrotliEncoder;
+
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPOutputStream;
 
 
@@ -9,7 +15,9 @@ import java.util.zip.GZIPOutputStream;
  * Encoding type enumeration
  */
 public enum HttpEncoding {
-    AUTO(null), GZIP("gzip"), NONE(null);
+    AUTO(null), GZIP("gzip"), DEFLATE("deflate"), BROTLI("br"), NONE(null);
+
+    public static final int DEFAULT_BROTLI_QUALITY = 4;
 
     public final String headerName;
 
@@ -24,9 +32,24 @@ public enum HttpEncoding {
      * @throws IOException
      */
     public OutputStream encodeOutputStream(OutputStream outputStream) throws IOException {
+        return encodeOutputStream(outputStream, false);
+    }
+
+    /**
+     * Wrap the provided stream in an encoded stream
+     * @param outputStream The stream to be encoded
+     * @param syncFlush True to send all the data written so far when the encoded stream is flushed
+     * @return The encoding stream, or the provided stream is no encoding is defined
+     * @throws IOException
+     */
+    public OutputStream encodeOutputStream(OutputStream outputStream, boolean syncFlush) throws IOException {
         switch (this) {
             case GZIP:
-                return new GZIPOutputStream(outputStream);
+                return new GZIPOutputStream(outputStream, syncFlush);
+            case DEFLATE:
+                return new DeflaterOutputStream(outputStream, syncFlush);
+            case BROTLI:
+                return BrotliEncoder.encode(outputStream, DEFAULT_BROTLI_QUALITY);
             case AUTO:
             case NONE:
                 return outputStream;
@@ -34,5 +57,125 @@ public enum HttpEncoding {
 
         return null;
     }
-}
 
+    /**
+     * Return the entity tag of the representation encoded with this encoding : as the encoded content differs, a
+     * strong entity tag can't be shared with the identity representation
+     * @param etag The quoted entity tag of the identity representation, may be null
+     * @return The entity tag, suffixed with the encoding name
+     */
+    public String encodeETag(String etag) {
+        if(headerName == null || etag == null || !etag.endsWith("\""))
+            return etag;
+
+        return etag.substring(0, etag.length() - 1) + "-" + headerName + "\"";
+    }
+
+    /**
+     * Return the weak entity tag of the representation encoded with this encoding, for the content compressed by the
+     * server : the compressed bytes depend on the compression level, and may differ from the precompressed files
+     * @param etag The quoted entity tag of the identity representation, may be null
+     * @return The weak entity tag, suffixed with the encoding name
+     */
+    public String encodeWeakETag(String etag) {
+        String encoded = encodeETag(etag);
+
+        if(headerName == null || encoded == null || encoded.startsWith("W/"))
+            return encoded;
+
+        return "W/" + encoded;
+    }
+
+    /**
+     * Return true if the encoding can be used, Brotli needing an optional codec
+     * @return True if the encoding is available
+     */
+    public boolean isAvailable() {
+        return this != BROTLI || BrotliEncoder.isAvailable();
+    }
+
+    /**
+     * Return the quality value given by the client to this encoding, the encoding being acceptable if it is above 0
+     * @param acceptedEncoding The Accept-Encoding header value, may be null
+     * @return The quality value, from 0 to 1
+     */
+    public double getQuality(String acceptedEncoding) {
+        if(headerName == null || acceptedEncoding == null)
+            return 0;
+
+        double wildcard = 0;
+
+        for(String coding : acceptedEncoding.split(",")) {
+            String[] parameters = coding.split(";");
+            String name = parameters[0].trim().toLowerCase();
+            double quality = 1;
+
+            for(int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+
+                if(parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        quality = Math.max(0, Math.min(1, Double.parseDouble(parameter.substring(2))));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+
+            if(name.equals(headerName) || (this == GZIP && name.equals("x-gzip")))
+                return quality;
+            else if(name.equals("*"))
+                wildcard = quality;
+        }
+
+        return wildcard;
+    }
+
+    /**
+     * Return true if the client accepts this encoding
+     * @param acceptedEncoding The Accept-Encoding header value, may be null
+     * @return True if the encoding is accepted
+     */
+    public boolean isAccepted(String acceptedEncoding) {
+        return getQuality(acceptedEncoding) > 0;
+    }
+
+    /**
+     * Return the encoding to use for the provided Accept-Encoding header value, among the available encodings
+     * @param acceptedEncoding The Accept-Encoding header value, may be null
+     * @return The encoding to use, or NONE
+     */
+    public static HttpEncoding negotiate(String acceptedEncoding) {
+        List<HttpEncoding> encodings = new ArrayList<>();
+        Collections.addAll(encodings, BROTLI, GZIP, DEFLATE);
+        encodings.removeIf(encodingType -> !encodingType.isAvailable());
+
+        return negotiate(acceptedEncoding, encodings);
+    }
+
+    /**
+     * Return the encoding to use for the provided Accept-Encoding header value : the one with the highest quality
+     * value, or the first one in the server's order for equal values
+     * @param acceptedEncoding The Accept-Encoding header value, may be null
+     * @param encodings The encodings supported by the server, by order of preference
+     * @return The encoding to use, or NONE
+     */
+    public static HttpEncoding negotiate(String acceptedEncoding, List<HttpEncoding> encodings) {
+        if(acceptedEncoding == null)
+            return NONE;
+
+        HttpEncoding best = NONE;
+        double bestQuality = 0;
+
+        for(HttpEncoding encodingType : encodings) {
+            double quality = encodingType.getQuality(acceptedEncoding);
+
+            if(quality > bestQuality) {
+                best = encodingType;
+                bestQuality = quality;
+            }
+        }
+
+        return best;
+    }
+}
@@ -0,0 +1,394 @@
+package fr.vuzi.http.request;
+
+import fr.vuzi.http.error.HttpException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Buffered reader of HTTP messages, meant to be kept for the whole connection. The request line and the headers are
+ * parsed in place in the reusable buffer, and the well-known methods, protocols and header names are shared
+ * constants instead of new strings. Once the head is read, the reader acts as the input stream of the body, and then
+ * of the next message. Responses are read the same way, on the connections to upstream servers
+ */
+public class HttpMessageReader extends InputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_HEAD_SIZE = 65536; // 64Ko
+    private static final int MAX_HEADERS = 100;
+    private static final int MAX_EMPTY_LINES = 8;
+
+    private static final String[] METHODS = { "GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH" };
+    private static final String[] PROTOCOLS = { "HTTP/1.1", "HTTP/1.0" };
+    private static final String[][] HEADERS = byLength(
+            "host", "connection", "keep-alive", "content-length", "content-type", "content-encoding",
+            "transfer-encoding", "accept", "accept-encoding", "accept-language", "accept-charset", "user-agent",
+            "cookie", "referer", "origin", "cache-control", "pragma", "if-modified-since", "if-unmodified-since",
+            "if-none-match", "if-match", "if-range", "range", "authorization", "upgrade", "expect", "te", "dnt",
+            "x-forwarded-for", "x-forwarded-proto", "x-forwarded-host", "x-real-ip", "x-requested-with",
+            "upgrade-insecure-requests");
+
+    private final InputStream inputStream;
+
+    private byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+
+    // Bytes of the current head still allowed
+    private int headRemaining = MAX_HEAD_SIZE;
+
+    /**
+     * Create a reader over the provided stream
+     * @param inputStream The connection input stream
+     */
+    public HttpMessageReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Create a reader over an already received message, without copying it
+     * @param data The message data
+     */
+    public HttpMessageReader(byte[] data) {
+        this.inputStream = null;
+        this.buffer = data;
+        this.limit = data.length;
+    }
+
+    /**
+     * Wait for the next message
+     * @return False if the stream ended before any new data
+     * @throws IOException
+     */
+    public boolean awaitMessage() throws IOException {
+        return position < limit || fillBody() > 0;
+    }
+
+    /**
+     * Read the request line, the headers, the body and the cookies of the next request
+     * @param request The request to fill
+     * @throws HttpException If the request is malformed
+     * @throws IOException
+     */
+    public void readRequest(IHttpRequest request) throws HttpException, IOException {
+        readRequestLine(request);
+        request.setHeaders(readHeaders());
+
+        HttpUtils.RequestParser.parseBody(request, this);
+        HttpUtils.RequestParser.parseCookies(request);
+    }
+
+    /**
+     * Read the status line and the headers of the next response. The body is left in the stream
+     * @param response The response to fill
+     * @throws EOFException If the stream ends before the response
+     * @throws HttpException If the response is malformed
+     * @throws IOException
+     */
+    public void readResponse(IHttpResponse response) throws HttpException, IOException {
+        if(!awaitMessage())
+            throw new EOFException("Connection closed before the response");
+
+        try {
+            readStatusLine(response);
+            response.getHeaders().putAll(readHeaders());
+        } catch (HttpException e) {
+            throw new HttpException(502, "Bad response from server", e);
+        }
+    }
+
+    private void readStatusLine(IHttpResponse response) throws HttpException, IOException {
+        headRemaining = MAX_HEAD_SIZE;
+        int lineEnd = nextLine();
+        int end = trimEnd(position, lineEnd);
+        int firstSpace = indexOf(' ', position, end);
+        int secondSpace = firstSpace < 0 ? -1 : indexOf(' ', firstSpace + 1, end);
+        int statusEnd = secondSpace < 0 ? end : secondSpace;
+
+        if(firstSpace <= position || statusEnd - firstSpace != 4)
+            throw new HttpException(502, "Invalid status line");
+
+        int status = 0;
+        for(int i = firstSpace + 1; i < statusEnd; i++) {
+            if(buffer[i] < '0' || buffer[i] > '9')
+                throw new HttpException(502, "Invalid status code");
+
+            status = status * 10 + (buffer[i] - '0');
+        }
+
+        response.setProtocol(constant(PROTOCOLS, position, firstSpace));
+        response.setStatus(status);
+        response.setTextStatus(secondSpace < 0 ? "" :
+                new String(buffer, secondSpace + 1, end - secondSpace - 1, StandardCharsets.ISO_8859_1));
+
+        skipLine(lineEnd);
+    }
+
+    private void readRequestLine(IHttpRequest request) throws HttpException, IOException {
+        headRemaining = MAX_HEAD_SIZE;
+        int lineEnd = nextLine();
+
+        // Empty lines are allowed before the request line
+        for(int i = 0; trimEnd(position, lineEnd) == position && i < MAX_EMPTY_LINES; i++) {
+            skipLine(lineEnd);
+            lineEnd = nextLine();
+        }
+
+        int end = trimEnd(position, lineEnd);
+        int firstSpace = indexOf(' ', position, end);
+        int secondSpace = firstSpace < 0 ? -1 : indexOf(' ', firstSpace + 1, end);
+
+        if(firstSpace <= position || secondSpace <= firstSpace + 1 || indexOf(' ', secondSpace + 1, end) >= 0)
+            throw new HttpException(405, "Invalid HTTP request method");
+
+        request.setMethod(constant(METHODS, position, firstSpace));
+        request.setLocation(new String(buffer, firstSpace + 1, secondSpace - firstSpace - 1, StandardCharsets.UTF_8));
+        request.setProtocol(constant(PROTOCOLS, secondSpace + 1, end));
+
+        skipLine(lineEnd);
+    }
+
+    private HashMap<String, String> readHeaders() throws HttpException, IOException {
+        HashMap<String, String> headers = new HashMap<>();
+        int count = 0;
+
+        while(true) {
+            int lineEnd = nextLine();
+            int end = trimEnd(position, lineEnd);
+
+            if(end == position) {
+                skipLine(lineEnd);
+                return headers;
+            }
+
+            if(++count > MAX_HEADERS)
+                throw new HttpException(431, "Too many request header fields");
+
+            int colon = indexOf(':', position, end);
+            int nameEnd = colon < 0 ? -1 : trimEnd(position, colon);
+
+            if(nameEnd <= position)
+                throw new HttpException(400, "Malformed header at line " + headers.size());
+
+            int valueStart = colon + 1;
+            while(valueStart < end && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t'))
+                valueStart++;
+
+            headers.put(headerName(position, nameEnd),
+                    new String(buffer, valueStart, end - valueStart, StandardCharsets.UTF_8));
+
+            skipLine(lineEnd);
+        }
+    }
+
+    /**
+     * Find the end of the next line, reading more data if needed
+     * @return The index of the line feed ending the line
+     * @throws HttpException If the stream ends, or if the line is over the remaining head size
+     * @throws IOException
+     */
+    private int nextLine() throws HttpException, IOException {
+        int scanned = position;
+
+        while(true) {
+            for(; scanned < limit; scanned++) {
+                if(buffer[scanned] == '\n')
+                    return scanned;
+            }
+
+            if(scanned - position >= headRemaining)
+                throw new HttpException(431, "Request header fields too large");
+
+            scanned -= position;
+            if(fill() < 0)
+                throw new HttpException(400, "Unexpected end of request");
+            scanned += position;
+        }
+    }
+
+    /**
+     * Move to the next line, counting the line in the head size
+     * @throws HttpException If the head is over its size limit
+     */
+    private void skipLine(int lineEnd) throws HttpException {
+        headRemaining -= lineEnd + 1 - position;
+        if(headRemaining < 0)
+            throw new HttpException(431, "Request header fields too large");
+
+        position = lineEnd + 1;
+    }
+
+    /**
+     * Read more data into the buffer, compacting or growing it if it is full
+     * @return The number of bytes read, or -1 at the end of the stream
+     * @throws HttpException If the buffer would grow over the head size limit
+     * @throws IOException
+     */
+    private int fill() throws HttpException, IOException {
+        if(inputStream == null)
+            return -1;
+
+        if(position == limit) {
+            position = 0;
+            limit = 0;
+        } else if(limit == buffer.length) {
+            if(position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                position = 0;
+            } else {
+                if(buffer.length >= MAX_HEAD_SIZE)
+                    throw new HttpException(431, "Request header fields too large");
+
+                byte[] newBuffer = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, newBuffer, 0, limit);
+                buffer = newBuffer;
+            }
+        }
+
+        int byteRead = inputStream.read(buffer, limit, buffer.length - limit);
+        if(byteRead > 0)
+            limit += byteRead;
+
+        return byteRead;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for(int i = from; i < to; i++) {
+            if(buffer[i] == c)
+                return i;
+        }
+
+        return -1;
+    }
+
+    private int trimEnd(int from, int to) {
+        while(to > from && (buffer[to - 1] == '\r' || buffer[to - 1] == ' ' || buffer[to - 1] == '\t'))
+            to--;
+
+        return to;
+    }
+
+    /**
+     * Return the constant matching the bytes, or a new string if none matches
+     */
+    private String constant(String[] constants, int from, int to) {
+        for(String constant : constants) {
+            if(matches(constant, from, to, false))
+                return constant;
+        }
+
+        return new String(buffer, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Return the lower case header name, using the well-known names when possible
+     */
+    private String headerName(int from, int to) {
+        int length = to - from;
+
+        if(length < HEADERS.length) {
+            for(String header : HEADERS[length]) {
+                if(matches(header, from, to, true))
+                    return header;
+            }
+        }
+
+        char[] name = new char[length];
+        for(int i = 0; i < length; i++)
+            name[i] = (char) toLower(buffer[from + i]);
+
+        return new String(name);
+    }
+
+    private boolean matches(String value, int from, int to, boolean ignoreCase) {
+        if(value.length() != to - from)
+            return false;
+
+        for(int i = 0; i < value.length(); i++) {
+            int b = ignoreCase ? toLower(buffer[from + i]) : buffer[from + i] & 0xFF;
+
+            if(b != value.charAt(i))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static int toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xFF;
+    }
+
+    private static String[][] byLength(String... values) {
+        int max = 0;
+        for(String value : values)
+            max = Math.max(max, value.length());
+
+        String[][] table = new String[max + 1][];
+        for(int length = 0; length <= max; length++) {
+            int count = 0;
+            for(String value : values)
+                if(value.length() == length)
+                    count++;
+
+            table[length] = new String[count];
+            for(String value : values)
+                if(value.length() == length)
+                    table[length][--count] = value;
+        }
+
+        return table;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(position >= limit && fillBody() < 0)
+            return -1;
+
+        return buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0)
+            return 0;
+
+        if(position >= limit) {
+            // Large reads go directly to the stream
+            if(len >= buffer.length && inputStream != null)
+                return inputStream.read(b, off, len);
+
+            if(fillBody() < 0)
+                return -1;
+        }
+
+        int count = Math.min(len, limit - position);
+        System.arraycopy(buffer, position, b, off, count);
+        position += count;
+
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (limit - position) + (inputStream != null ? inputStream.available() : 0);
+    }
+
+    private int fillBody() throws IOException {
+        try {
+            return fill();
+        } catch (HttpException e) {
+            throw new IOException(e); // Can't happen, the buffer is empty
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(inputStream != null)
+            inputStream.close();
+    }
+}
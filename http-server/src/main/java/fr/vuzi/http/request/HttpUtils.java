@@ -3,109 +3,136 @@ package fr.vuzi.http.request;
 import fr.vuzi.http.error.HttpException;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class HttpUtils {
 
-    private static final int MAX_LINE_LENGTH = 1048576; // 1Mo
-
-    public static String readLine(InputStream inputStream) throws IOException, HttpException {
-        byte[] buffer = new byte[1024];
-        int i = 0;
-
-        do {
-            int b = inputStream.read();
-
-            if(i >= buffer.length) {
-                // Need to resize the buffer
-                int size = (int)(buffer.length * 1.5);
-
-                if(size >= MAX_LINE_LENGTH)
-                    throw new HttpException(413, "Entity Too Large");
+    private static final int MAX_BODY_SIZE = 10485760; // 10Mo
+    private static final int COPY_BUFFER_SIZE = 65536; // 64Ko
+
+    /**
+     * Copy buffer of each thread, reused by all the body copies
+     */
+    private static final ThreadLocal<byte[]> copyBuffer = ThreadLocal.withInitial(() -> new byte[COPY_BUFFER_SIZE]);
+
+    /**
+     * Copy the stream until its end. Each write waits for the output, so a slow output slows down the reads instead
+     * of accumulating data
+     * @param inputStream The stream to read
+     * @param outputStream The stream to write
+     * @return The number of bytes copied
+     * @throws IOException
+     */
+    public static long copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] buffer = copyBuffer.get();
+        long copied = 0;
+        int byteRead;
+
+        while((byteRead = inputStream.read(buffer)) >= 0) {
+            outputStream.write(buffer, 0, byteRead);
+            copied += byteRead;
+        }
 
-                byte[] newBuffer = new byte[size];
-                System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
-                buffer = newBuffer;
-            }
+        return copied;
+    }
 
-            if(b < 0)
-                break; // End of stream
+    /**
+     * Copy the remaining content of the buffer
+     * @param byteBuffer The buffer to read
+     * @param outputStream The stream to write
+     * @throws IOException
+     */
+    public static void copy(ByteBuffer byteBuffer, OutputStream outputStream) throws IOException {
+        if(byteBuffer.hasArray()) {
+            outputStream.write(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(),
+                    byteBuffer.remaining());
+            byteBuffer.position(byteBuffer.limit());
+            return;
+        }
 
-            buffer[i] = (byte) b;
-        } while(buffer[i++] != '\n');
+        byte[] buffer = copyBuffer.get();
 
-        return new String(buffer, 0, i + 1, "UTF-8").trim();
+        while(byteBuffer.hasRemaining()) {
+            int length = Math.min(buffer.length, byteBuffer.remaining());
+            byteBuffer.get(buffer, 0, length);
+            outputStream.write(buffer, 0, length);
+        }
     }
 
-    public static class RequestSender {
-
-        public static void send(IHttpRequest request, OutputStream outputStream) throws HttpException, IOException {
-            outputStream.write(String.format("%s %s %s\r\n", request.getMethod(), request.getLocation(), request
-                    .getProtocol()).getBytes());
-            for(Map.Entry<String, String> header : request.getHeaders().entrySet()) {
-                outputStream.write(String.format("%s: %s\r\n", header.getKey(), header.getValue()).getBytes());
-            }
-            outputStream.write("\r\n".getBytes());
-            outputStream.write(request.getBody());
-            outputStream.flush();
+    /**
+     * Read the whole stream in memory
+     * @param inputStream The stream to read
+     * @return The read bytes
+     * @throws HttpException If the stream is larger than the maximum body size
+     * @throws IOException
+     */
+    public static byte[] readBody(InputStream inputStream) throws HttpException, IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int byteRead;
+
+        while((byteRead = inputStream.read(buffer)) > 0) {
+            if(body.size() + byteRead >= MAX_BODY_SIZE)
+                throw new HttpException(413, "Body too large");
+
+            body.write(buffer, 0, byteRead);
         }
 
+        return body.toByteArray();
     }
 
-    public static class ResponseParser {
+    public static class RequestSender {
 
-        public static void parse(IHttpResponse response, InputStream inputStream) throws HttpException, IOException {
-            HttpUtils.ResponseParser.parseResponse(response, inputStream);
-            HttpUtils.ResponseParser.parseHeaders(response, inputStream);
+        public static void send(IHttpRequest request, OutputStream outputStream) throws HttpException, IOException {
+            StringBuilder head = new StringBuilder();
+            head.append(request.getMethod()).append(' ')
+                .append(request.getLocation()).append(' ')
+                .append(request.getProtocol()).append("\r\n");
 
-            response.setEncodingType(HttpEncoding.NONE);
-            response.setBody(inputStream);
-        }
+            // The framing follows how the body was parsed, never the received framing headers
+            InputStream body = request.getBodyStream();
+            long length = -1;
 
-        public static void parseResponse(IHttpResponse response, InputStream inputStream) throws HttpException, IOException {
-            String line = HttpUtils.readLine(inputStream);
+            if(body instanceof ContentLengthInputStream)
+                length = ((ContentLengthInputStream) body).getRemaining();
+            else if(body == null || body instanceof ByteArrayInputStream)
+                length = body == null ? 0 : body.available();
 
-            int firstSpace = line.indexOf(" ");
-            int secondSpace = line.indexOf(" ", firstSpace + 1);
+            for(Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                if(!header.getKey().equals("content-length") && !header.getKey().equals("transfer-encoding"))
+                    head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
 
-            if (firstSpace < 0 || secondSpace < 0)
-                throw new HttpException(502, "Bad response from server");
+            if(length < 0)
+                head.append("transfer-encoding: chunked\r\n");
+            else if(length > 0 || request.getHeader("content-length") != null)
+                head.append("content-length: ").append(length).append("\r\n");
 
-            response.setProtocol(line.substring(0, firstSpace));
-            response.setStatus(Integer.parseInt(line.substring(firstSpace + 1, secondSpace)));
-            response.setTextStatus(line.substring(secondSpace + 1));
-        }
+            head.append("\r\n");
+            outputStream.write(head.toString().getBytes(StandardCharsets.UTF_8));
 
-        public static void parseHeaders(IHttpResponse response, InputStream inputStream) throws HttpException, IOException {
-            String line;
+            // Stream the body
+            if(body != null && length != 0) {
+                OutputStream bodyOutput = length < 0 ? new ChunkedOutputStream(outputStream) : outputStream;
 
-            while (!(line = HttpUtils.readLine(inputStream).trim()).isEmpty()) {
-                int i = line.indexOf(':');
+                copy(body, bodyOutput);
 
-                if (i < 1)
-                    throw new HttpException(400, "Malformed header at line " + response.getHeaders().size());
-
-                response.getHeaders().put(line.substring(0, i).trim().toLowerCase(),
-                        line.length() > i ? line.substring(i + 1).trim() : "");
+                if(bodyOutput != outputStream)
+                    bodyOutput.close();
             }
+
+            outputStream.flush();
         }
 
     }
 
     public static class RequestParser {
 
-        public static void parse(IHttpRequest request, InputStream inputStream) throws HttpException, IOException {
-            HttpUtils.RequestParser.parseRequest(request, inputStream);
-            HttpUtils.RequestParser.parseHeaders(request, inputStream);
-            HttpUtils.RequestParser.parseBody(request, inputStream);
-
-            HttpUtils.RequestParser.parseCookies(request);
-        }
-
-        private static void parseCookies(IHttpRequest request) {
+        public static void parseCookies(IHttpRequest request) {
             List<HttpCookie> cookies = new ArrayList<>();
 
             String rawCookiesHeader = request.getHeader("Cookie");
@@ -119,101 +146,44 @@ public class HttpUtils {
                     if(i < 0)
                         cookies.add(new HttpCookie(null, rawCookie.trim()));
                     else
-                        cookies.add(new HttpCookie(rawCookie.substring(0, i).trim(), rawCookie.substring(i + 1, 0).trim()));
+                        cookies.add(new HttpCookie(rawCookie.substring(0, i).trim(), rawCookie.substring(i + 1).trim()));
                 }
             }
 
             request.setCookies(cookies);
         }
 
-        public static void parseRequest(IHttpRequest request, InputStream inputStream) throws HttpException, IOException {
-            String requestValues[] = readLine(inputStream).split(" ");
-            if(requestValues.length != 3)
-                throw new HttpException(405, "Invalid HTTP request method");
-
-            request.setMethod(requestValues[0].trim());
-            request.setLocation(requestValues[1].trim());
-            request.setProtocol(requestValues[2].trim());
-        }
-
-        public static void parseHeaders(IHttpRequest request, InputStream inputStream) throws HttpException, IOException {
-            String line;
-            HashMap<String, String> headers = new HashMap<>();
+        public static void parseBody(IHttpRequest request, InputStream inputStream) throws HttpException, IOException {
+            String transferEncoding = request.getHeader("transfer-encoding");
+            String contentLength = request.getHeader("content-length");
 
-            while(!(line = HttpUtils.readLine(inputStream).trim()).isEmpty()) {
-                int i = line.indexOf(':');
+            // A message with both framings could be split differently by another server (request smuggling)
+            if(transferEncoding != null && contentLength != null)
+                throw new HttpException(400, "Both transfer-encoding and content-length headers");
 
-                if(i < 1)
-                    throw new HttpException(400, "Malformed header at line " + headers.size());
+            // The body is not read here, but exposed as a stream limited to the body
+            if(transferEncoding != null && !transferEncoding.trim().equalsIgnoreCase("identity")) {
+                if(!transferEncoding.toLowerCase().endsWith("chunked"))
+                    throw new HttpException(501, "Unsupported transfer-encoding: " + transferEncoding);
 
-                headers.put(line.substring(0, i).trim().toLowerCase(),
-                        line.length() > i ? line.substring(i + 1).trim() : "");
-            }
+                request.setBodyStream(new ChunkedInputStream(inputStream));
+            } else if(contentLength != null) {
+                long bodySize;
 
-            request.setHeaders(headers);
-        }
-        private static final int MAX_BODY_SIZE = 10485760; // 10Mo
-
-        public static void parseBody(IHttpRequest request, InputStream inputStream) throws HttpException, IOException {
-            String contentLength = request.getHeader("content-length");
-            boolean hasContentLength = false;
-            int bodySize = 1024;
-
-            if(contentLength != null) {
                 try {
-                    bodySize = Integer.valueOf(contentLength);
-                    hasContentLength = true;
+                    bodySize = Long.valueOf(contentLength.trim());
                 } catch(NumberFormatException e) {
                     bodySize = -1;
                 }
 
                 if(bodySize < 0)
-                    throw new HttpException(400, "Malformed content-length header: " + request.getHeader("content-length"));
-            }
-
-            // If the stream if empty, set an empty body
-            if(inputStream.available() <= 0) {
-                request.setBody(new byte[0]);
-                return;
-            }
-
-            byte[] body = new byte[bodySize];
-            int i = 0;
-
-            do {
-                int b = inputStream.read();
-
-                if (b < 0)
-                    break; // End of stream
-
-                if (i >= body.length) {
-                    // Need to resize the buffer
-                    int size = (int) (body.length * 1.5);
-
-                    if (size >= MAX_BODY_SIZE)
-                        throw new HttpException(413, "Body too large");
-
-                    byte[] newBuffer = new byte[size];
-                    System.arraycopy(body, 0, newBuffer, 0, body.length);
-                    body = newBuffer;
-                }
-
-                body[i++] = (byte) b;
-
-                if(hasContentLength && i >= bodySize) {
-                    break; // If content length is specified
-                }
-
-            } while (true);
-
-            i--;
+                    throw new HttpException(400, "Malformed content-length header: " + contentLength);
 
-            if(i != (body.length - 1)) {
-                byte[] resizeBody = new byte[i + 1];
-                System.arraycopy(body, 0, resizeBody, 0, i + 1);
-                body = resizeBody;
+                request.setBodyStream(new ContentLengthInputStream(inputStream, bodySize));
+            } else {
+                // Without content length, the request has no body
+                request.setBodyStream(new ByteArrayInputStream(new byte[0]));
             }
-            request.setBody(body);
         }
 
     }
@@ -3,6 +3,7 @@ package fr.vuzi.http.request;
 import fr.vuzi.http.error.HttpException;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.util.List;
 import java.util.Map;
@@ -95,10 +96,13 @@ public interface IHttpRequest {
     void setParameters(Map<String, String> parameters);
 
     /**
-     * Return the body of the request
+     * Return the whole body of the request. The body stream is entirely read and kept in memory on the first call,
+     * prefer getBodyStream() for large bodies
      * @return The body of the request
+     * @throws HttpException If the body is too large
+     * @throws IOException If the body could not be read
      */
-    byte[] getBody();
+    byte[] getBody() throws HttpException, IOException;
 
     /**
      * Set the body to the provided byte array
@@ -106,6 +110,19 @@ public interface IHttpRequest {
      */
     void setBody(byte[] body);
 
+    /**
+     * Return the body of the request as a stream, limited to the body length and decoded from the transfer
+     * encoding. The body is read from the connection as the stream is consumed
+     * @return The body stream
+     */
+    InputStream getBodyStream();
+
+    /**
+     * Set the body stream
+     * @param bodyStream The body stream
+     */
+    void setBodyStream(InputStream bodyStream);
+
     /**
      * Return the inet address of the client
      * @return The client address
@@ -1,9 +1,16 @@
 package fr.vuzi.http.request;
 
+import fr.vuzi.http.compression.HttpCompression;
+
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 
 import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.Map;
 
 /**
@@ -79,11 +86,52 @@ public interface IHttpResponse {
     void setBody(InputStream inputStream);
 
     /**
-     * Write the headers, the body and then close the connection
+     * Set the body to a region of a file. Without encoding, the region is sent directly from the file to the socket.
+     * The channel is closed once the response is written
+     * @param channel The file channel
+     * @param position The region start
+     * @param length The region length
+     */
+    void setBody(FileChannel channel, long position, long length);
+
+    /**
+     * Set the body to the remaining content of a buffer. The buffer is not modified, so a shared read-only buffer can
+     * be used by several responses at once
+     * @param buffer The body buffer
+     */
+    void setBody(ByteBuffer buffer);
+
+    /**
+     * Set the body to the remaining content of a buffer, and release it once the response is written
+     * @param buffer The body buffer
+     * @param release Called once the buffer is no longer used, may be null
+     */
+    void setBody(ByteBuffer buffer, Closeable release);
+
+    /**
+     * Write the headers and the body. The body is framed with a content length or a chunked transfer encoding, so
+     * the connection can be kept open for the next request. If the body is streamed, end it
      * @throws IOException
      */
     void write() throws IOException;
 
+    /**
+     * Send the headers, and return a stream to write the body progressively. The body uses the content length header
+     * if set by the service, or a chunked transfer encoding. Flushing the stream sends the written data to the client,
+     * and closing it ends the body
+     * @return The body stream
+     * @throws IOException If the headers have already been sent
+     */
+    OutputStream startBody() throws IOException;
+
+    /**
+     * Send the headers, and return a writer to write the body progressively, see {@link #startBody()}
+     * @param charset The body charset
+     * @return The body writer
+     * @throws IOException If the headers have already been sent
+     */
+    Writer startBody(Charset charset) throws IOException;
+
     /**
      * Return true if the headers have already been sent
      * @return True if the headers have already been sent
@@ -93,4 +141,10 @@ public interface IHttpResponse {
     OutputStream getOutputStream();
 
     void setEncodingType(HttpEncoding encodingType);
+
+    /**
+     * Return the compression applied to the bodies, as configured on the server
+     * @return The compression, or null if the bodies are never compressed automatically
+     */
+    HttpCompression getCompression();
 }
@@ -5,6 +5,22 @@ public interface IHttpHostRouter {
 
     public void addRoute(String hostname, IHttpRouter router);
 
+    /**
+     * Add a host only served on the provided port
+     * @param hostname The hostname, wildcard (*.example.com) or suffix (.example.com)
+     * @param port The port, or a negative value for any port
+     * @param router The router of the host
+     */
+    public void addRoute(String hostname, int port, IHttpRouter router);
+
     public IHttpRouter resolve(String hostname);
 
+    /**
+     * Resolve the router of a host, for a request received on the provided port
+     * @param hostname The requested hostname, may be null
+     * @param port The local port of the connection
+     * @return The router, or null if none matches
+     */
+    public IHttpRouter resolve(String hostname, int port);
+
 }
@@ -11,5 +11,14 @@ public interface IHttpRouter {
 
     void addRoute(HttpMethod method, Pattern pattern, String[] values, IHttpService service);
 
+    /**
+     * Add a route on a path template, where {name} matches a path segment and a final {name*} the rest of the path.
+     * The matched values are set as request parameters
+     * @param method The method
+     * @param template The path template, like /api/users/{id}
+     * @param service The service
+     */
+    void addRoute(HttpMethod method, String template, IHttpService service);
+
     IHttpService resolve(IHttpRequest request);
 }
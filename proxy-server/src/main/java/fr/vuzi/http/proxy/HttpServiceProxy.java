@@ -1,17 +1,26 @@
 package fr.vuzi.http.proxy;
 
 import fr.vuzi.http.error.HttpException;
-import fr.vuzi.http.request.HttpCookie;
+import fr.vuzi.http.proxy.balancer.ILoadBalancer;
+import fr.vuzi.http.proxy.balancer.LoadBalancerFactory;
+import fr.vuzi.http.proxy.cache.ProxyCache;
+import fr.vuzi.http.request.ChunkedInputStream;
+import fr.vuzi.http.request.ChunkedRelayInputStream;
+import fr.vuzi.http.request.ContentLengthInputStream;
+import fr.vuzi.http.request.HttpEncoding;
 import fr.vuzi.http.request.HttpUtils;
 import fr.vuzi.http.request.IHttpRequest;
 import fr.vuzi.http.request.IHttpResponse;
 import fr.vuzi.http.service.IHttpService;
 
 import java.io.*;
-import java.net.Socket;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -23,8 +32,27 @@ public class HttpServiceProxy implements IHttpService {
 
     private static Logger logger = Logger.getLogger(HttpServiceProxy.class.getCanonicalName());
 
+    /**
+     * Headers only meaningful for a single connection, never forwarded
+     */
+    private static final List<String> HOP_BY_HOP_HEADERS = Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "te", "trailer", "upgrade");
+
+    /**
+     * Headers defining the body framing, never removed through the Connection header
+     */
+    private static final List<String> FRAMING_HEADERS = Arrays.asList("content-length", "transfer-encoding");
+
+    /**
+     * Methods without side effects, which can be sent again when the connection fails
+     */
+    private static final List<String> RETRYABLE_METHODS = Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE");
+
     AtomicInteger index = new AtomicInteger(0);
     List<ProxyDestination> destinations = new ArrayList<>();
+    ILoadBalancer balancer;
+    ProxyHealthChecker healthChecker;
+    ProxyCache cache;
 
     public HttpServiceProxy(Map<String, String> parameters) throws Exception {
         String pool = parameters.get("pool");
@@ -37,58 +65,260 @@ public class HttpServiceProxy implements IHttpService {
             int portIndex = server.indexOf(':');
 
             if(portIndex < 0) {
-                destinations.add(new ProxyDestination(server, 80));
+                destinations.add(new ProxyDestination(server, 80, parameters));
             } else {
                 destinations.add(
                         new ProxyDestination(
                                 server.substring(0, portIndex),
-                                Integer.parseInt(server.substring(portIndex + 1))));
+                                Integer.parseInt(server.substring(portIndex + 1)),
+                                parameters));
             }
         }
+
+        balancer = LoadBalancerFactory.create(destinations, parameters);
+        healthChecker = new ProxyHealthChecker(destinations, parameters);
+
+        // Optional shared response cache
+        if(Boolean.valueOf(parameters.getOrDefault("cache", "false")))
+            cache = new ProxyCache(parameters);
     }
 
     @Override
     public void serve(IHttpRequest request, IHttpResponse response) throws HttpException {
+        if(cache != null)
+            cache.serve(request, response, this::proxy);
+        else
+            proxy(request, response);
+    }
+
+    /**
+     * Send the request to one of the servers
+     */
+    private void proxy(IHttpRequest request, IHttpResponse response) throws HttpException {
         int i = index.getAndIncrement();
-        ProxyDestination destination = destinations.get(i % destinations.size());
 
-        logger.info(String.format("Proxy request %d to %s %s -> %s",
-                i, request.getHostname(), request.getLocation(), destination.host));
+        // Update request headers
+        String forwardedFor = request.getHeader("X-Forwarded-For");
+        if(forwardedFor != null && !forwardedFor.isEmpty())
+            request.getHeaders().put("x-forwarded-for", forwardedFor + ", " + request.getClientAddress().toString());
+        else
+            request.getHeaders().put("x-forwarded-for",  request.getClientAddress().toString());
+
+        removeHopByHopHeaders(request.getHeaders());
+
+        // Persistent upstream connections are implicit in HTTP/1.1 only
+        if("HTTP/1.0".equals(request.getProtocol()))
+            request.getHeaders().put("connection", "keep-alive");
+
+        List<ProxyDestination> candidates = getCandidates(System.currentTimeMillis());
+
+        while(true) {
+            ProxyDestination destination = balancer.select(candidates, request);
+
+            if(logger.isLoggable(Level.FINE))
+                logger.fine(String.format("Proxy request %d to %s %s -> %s",
+                        i, request.getHostname(), request.getLocation(), destination));
+
+            try {
+                forward(request, response, destination);
+
+                if(logger.isLoggable(Level.FINE))
+                    logger.fine(String.format("Response for request %d from %s -> %d",
+                            i, destination, response.getStatus()));
+                return;
+            } catch (ConnectException e) {
+                logger.log(Level.WARNING, String.format("Connection to %s failed for proxy request %d",
+                        destination, i), e);
 
-        //HttpCookie stikyCookie = request.getCookie("ID");
+                // Nothing was sent, another server can take the request
+                if(candidates.size() <= 1)
+                    throw new HttpException(502, "Error during proxy request processing");
+
+                candidates = new ArrayList<>(candidates);
+                candidates.remove(destination);
+            } catch (SocketTimeoutException e) {
+                logger.log(Level.WARNING, String.format("Timeout during proxy request %d processing", i), e);
+                throw new HttpException(504, "Upstream server timeout");
+            } catch (IOException e) {
+                logger.log(Level.WARNING, String.format("Error during proxy request %d processing", i), e);
+                throw new HttpException(502, "Error during proxy request processing");
+            }
+        }
+    }
+
+    /**
+     * Return the servers able to take a new request : the ones not ejected, with the ones recovering from an
+     * ejection only taking a growing share of the requests. If every server is ejected, all of them are used
+     * @param now The current time, in ms
+     * @return The candidate servers
+     */
+    private List<ProxyDestination> getCandidates(long now) {
+        List<ProxyDestination> available = new ArrayList<>(destinations.size());
+        List<ProxyDestination> candidates = new ArrayList<>(destinations.size());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for(ProxyDestination destination : destinations) {
+            if(!destination.isAvailable(now))
+                continue;
+
+            available.add(destination);
+
+            if(random.nextDouble() < destination.getWeight(now))
+                candidates.add(destination);
+        }
+
+        if(!candidates.isEmpty())
+            return candidates;
+
+        return available.isEmpty() ? destinations : available;
+    }
+
+    /**
+     * Forward the request to the server, and update the server statistics
+     */
+    private void forward(IHttpRequest request, IHttpResponse response, ProxyDestination destination)
+            throws HttpException, IOException {
+        destination.requestStarted();
 
         try {
-            Socket socket = new Socket(destination.host, destination.port);
+            long start = System.nanoTime();
+            ProxyConnection connection = exchange(destination, request, response);
+
+            long now = System.nanoTime();
+            destination.recordLatency(now - start, now);
 
-            // Update request headers
-            String forwardedFor = request.getHeader("X-Forwarded-For");
-            if(forwardedFor != null && !forwardedFor.isEmpty())
-                request.getHeaders().put("X-Forwarded-For", forwardedFor + ", " + request.getClientAddress().toString());
+            // Gateway errors of the upstream count as failures
+            int status = response.getStatus();
+            if(status == 502 || status == 503 || status == 504)
+                destination.failure(System.currentTimeMillis());
             else
-                request.getHeaders().put("X-Forwarded-For",  request.getClientAddress().toString());
+                destination.success(System.currentTimeMillis());
 
-            // Send to the server
-            HttpUtils.RequestSender.send(request, socket.getOutputStream());
+            setResponseBody(request, response, connection, destination);
+        } catch (IOException | HttpException | RuntimeException e) {
+            destination.requestFinished();
 
-            // Read the response
-            HttpUtils.ResponseParser.parse(response, socket.getInputStream());
+            if(e instanceof IOException)
+                destination.failure(System.currentTimeMillis());
 
-            logger.info(String.format("Response for request %d from %s -> %d",
-                    i, destination.host, response.getStatus()));
+            throw e;
+        }
+    }
+
+    /**
+     * Send the request and read the response head. A request failing on a reused connection before any response
+     * data is sent again on another one if it is safe and has no body, as the server may have closed the
+     * connection in the meantime. Timeouts are never retried
+     * @return The connection, holding the response body
+     */
+    private ProxyConnection exchange(ProxyDestination destination, IHttpRequest request, IHttpResponse response)
+            throws HttpException, IOException {
+        while(true) {
+            ProxyConnection connection = destination.getConnections().acquire();
+            boolean responseStarted = false;
+
+            try {
+                HttpUtils.RequestSender.send(request, connection.getOutputStream());
+
+                responseStarted = connection.getInputStream().awaitMessage();
+                connection.getInputStream().readResponse(response);
+
+                return connection;
+            } catch (IOException | HttpException | RuntimeException e) {
+                connection.release(false);
+
+                if(!(e instanceof IOException) || e instanceof SocketTimeoutException || responseStarted ||
+                        !connection.isReused() || !RETRYABLE_METHODS.contains(request.getMethod()) ||
+                        hasBody(request))
+                    throw e;
+
+                response.getHeaders().clear();
+            }
+        }
+    }
+
+    /**
+     * Set the response body to the upstream body, framed so the connection can be reused once it is read. The body
+     * is streamed to the client as it is received : chunked bodies are relayed as is to HTTP/1.1 clients, and the
+     * upstream is only read as fast as the client receives the body
+     */
+    private void setResponseBody(IHttpRequest request, IHttpResponse response, ProxyConnection connection,
+                                 ProxyDestination destination) {
+        Map<String, String> headers = response.getHeaders();
+
+        String connectionHeader = headers.get("connection");
+        String transferEncoding = headers.remove("transfer-encoding");
+        String contentLength = headers.get("content-length");
+
+        boolean reusable = "HTTP/1.1".equals(response.getProtocol()) ?
+                !"close".equalsIgnoreCase(connectionHeader) : "keep-alive".equalsIgnoreCase(connectionHeader);
 
-        } catch (IOException e) {
-            logger.log(Level.WARNING, String.format("Error during proxy request %d processing", i), e);
-            throw new HttpException(500, "Error during proxy request processing");
+        removeHopByHopHeaders(headers);
+        response.setProtocol("HTTP/1.1");
+        response.setEncodingType(HttpEncoding.NONE);
+
+        int status = response.getStatus();
+        InputStream body;
+
+        if("HEAD".equals(request.getMethod()) || status < 200 || status == 204 || status == 304) {
+            // Nothing to read, the connection is released right away
+            connection.release(reusable);
+            destination.requestFinished();
+
+            response.setBody(new ByteArrayInputStream(new byte[0]));
+            return;
+        } else if(transferEncoding != null && transferEncoding.toLowerCase().endsWith("chunked")) {
+            headers.remove("content-length");
+
+            if("HTTP/1.1".equals(request.getProtocol())) {
+                response.setHeader("Transfer-Encoding", transferEncoding); // Already framed
+                body = new ChunkedRelayInputStream(connection.getInputStream());
+            } else {
+                body = new ChunkedInputStream(connection.getInputStream()); // Framed again by the response
+            }
+        } else if(transferEncoding == null && contentLength != null) {
+            try {
+                body = new ContentLengthInputStream(connection.getInputStream(), Long.parseLong(contentLength.trim()));
+            } catch (NumberFormatException e) {
+                headers.remove("content-length");
+                body = connection.getInputStream();
+                reusable = false;
+            }
+        } else {
+            // Body delimited by the end of the connection
+            headers.remove("content-length");
+            body = connection.getInputStream();
+            reusable = false;
         }
+
+        response.setBody(new ProxyBodyInputStream(body, connection, destination, reusable));
+    }
+
+    private static boolean hasBody(IHttpRequest request) {
+        String contentLength = request.getHeader("content-length");
+
+        return request.getHeader("transfer-encoding") != null ||
+                (contentLength != null && !contentLength.trim().equals("0"));
     }
 
-    private class ProxyDestination {
-        String host;
-        int port;
+    /**
+     * Remove the hop-by-hop headers, including the ones listed in the Connection header. The framing headers can't
+     * be removed this way, as the body is already framed by them
+     * @param headers The headers
+     */
+    private static void removeHopByHopHeaders(Map<String, String> headers) {
+        String connection = headers.get("connection");
 
-        public ProxyDestination(String host, int port) {
-            this.host = host;
-            this.port = port;
+        if(connection != null) {
+            for(String header : connection.split(",")) {
+                header = header.trim().toLowerCase();
+
+                if(!FRAMING_HEADERS.contains(header))
+                    headers.remove(header);
+            }
         }
+
+        for(String header : HOP_BY_HOP_HEADERS)
+            headers.remove(header);
     }
 }
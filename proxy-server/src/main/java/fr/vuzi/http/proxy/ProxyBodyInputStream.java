@@ -0,0 +1,66 @@
+package fr.vuzi.http.proxy;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Body of an upstream response. Once closed, the connection goes back to the pool if the body was fully read, and is
+ * closed otherwise
+ */
+public class ProxyBodyInputStream extends FilterInputStream {
+
+    private final ProxyConnection connection;
+    private final ProxyDestination destination;
+    private final boolean reusable;
+
+    private boolean finished = false;
+    private boolean released = false;
+
+    /**
+     * @param body The framed body stream
+     * @param connection The connection of the response
+     * @param destination The server of the response
+     * @param reusable True if the connection can be reused once the body is read
+     */
+    public ProxyBodyInputStream(InputStream body, ProxyConnection connection, ProxyDestination destination,
+                                boolean reusable) {
+        super(body);
+        this.connection = connection;
+        this.destination = destination;
+        this.reusable = reusable;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if(b < 0)
+            finished = true;
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int byteRead = in.read(b, off, len);
+        if(byteRead < 0)
+            finished = true;
+
+        return byteRead;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(released)
+            return;
+
+        released = true;
+        connection.release(reusable && finished);
+        destination.requestFinished();
+    }
+}
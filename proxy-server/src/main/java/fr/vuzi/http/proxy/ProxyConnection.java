@@ -0,0 +1,99 @@
+package fr.vuzi.http.proxy;
+
+import fr.vuzi.http.request.HttpMessageReader;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * Persistent connection to an upstream server, used by a single request at a time
+ */
+public class ProxyConnection {
+
+    private final ProxyConnectionPool pool;
+    private final Socket socket;
+    private final HttpMessageReader inputStream;
+    private final OutputStream outputStream;
+
+    private long lastUsed;
+    private boolean reused = false;
+
+    ProxyConnection(ProxyConnectionPool pool, Socket socket) throws IOException {
+        this.pool = pool;
+        this.socket = socket;
+        this.inputStream = new HttpMessageReader(socket.getInputStream());
+        this.outputStream = new BufferedOutputStream(socket.getOutputStream(), 8192);
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    public HttpMessageReader getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Return true if the connection was already used by a previous request
+     * @return True for a reused connection
+     */
+    public boolean isReused() {
+        return reused;
+    }
+
+    /**
+     * Give the connection back to its pool
+     * @param reusable True if the last response was fully read, and the server keeps the connection open
+     */
+    public void release(boolean reusable) {
+        pool.release(this, reusable);
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void idle(long now) {
+        lastUsed = now;
+        reused = true;
+    }
+
+    /**
+     * Check that the server didn't close the connection while it was idle. A live connection has nothing to read,
+     * so a short read must time out
+     * @return True if the connection can be used
+     */
+    boolean validate() {
+        if(socket.isClosed() || socket.isInputShutdown())
+            return false;
+
+        try {
+            if(inputStream.available() > 0)
+                return false; // Unexpected data
+
+            int timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+
+            try {
+                inputStream.read();
+                return false; // End of stream, or unexpected data
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {}
+    }
+}
@@ -0,0 +1,153 @@
+package fr.vuzi.http.proxy;
+
+import fr.vuzi.http.error.HttpException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of persistent connections to an upstream server. The most recently used idle connections are reused first,
+ * so the others can expire, and connections idle for a while are validated before being reused
+ */
+public class ProxyConnectionPool {
+
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "proxy-pool-evictor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ProxyDestination destination;
+
+    private final int maxTotal;
+    private final int maxIdle;
+    private final long idleTimeout;
+    private final long validateAfter;
+    private final long acquireTimeout;
+    private final int connectTimeout;
+    private final int readTimeout;
+
+    private final Semaphore permits;
+    private final Deque<ProxyConnection> idle = new ConcurrentLinkedDeque<>();
+
+    ProxyConnectionPool(ProxyDestination destination, Map<String, String> parameters) {
+        this.destination = destination;
+        this.maxTotal = Integer.valueOf(parameters.getOrDefault("connections.max_total", "64"));
+        this.maxIdle = Integer.valueOf(parameters.getOrDefault("connections.max_idle", "16"));
+        this.idleTimeout = Long.valueOf(parameters.getOrDefault("connections.idle_timeout", "30000"));
+        this.validateAfter = Long.valueOf(parameters.getOrDefault("connections.validate_after", "2000"));
+        this.acquireTimeout = Long.valueOf(parameters.getOrDefault("connections.acquire_timeout", "5000"));
+        this.connectTimeout = Integer.valueOf(parameters.getOrDefault("connect_timeout", "2000"));
+        this.readTimeout = Integer.valueOf(parameters.getOrDefault("read_timeout", "30000"));
+        this.permits = new Semaphore(maxTotal);
+
+        long period = Math.max(1000, idleTimeout / 2);
+        evictor.scheduleAtFixedRate(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return a connection to the server, reusing an idle one when possible
+     * @return The connection, to be released once the response is read
+     * @throws HttpException If all the connections stay in use for too long
+     * @throws IOException If the connection could not be opened
+     */
+    public ProxyConnection acquire() throws HttpException, IOException {
+        try {
+            if(!permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS))
+                throw new HttpException(503, "No connection available to " + destination);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+
+        try {
+            ProxyConnection connection;
+            long now = System.currentTimeMillis();
+
+            while((connection = idle.pollFirst()) != null) {
+                long idleTime = now - connection.getLastUsed();
+
+                if(idleTime < idleTimeout && (idleTime < validateAfter || connection.validate()))
+                    return connection;
+
+                connection.close();
+            }
+
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(readTimeout);
+
+            try {
+                socket.connect(new InetSocketAddress(destination.getHost(), destination.getPort()), connectTimeout);
+            } catch (SocketTimeoutException e) {
+                socket.close();
+                throw new ConnectException("Connection to " + destination + " timed out");
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+
+            return new ProxyConnection(this, socket);
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Give a connection back to the pool
+     * @param connection The connection
+     * @param reusable True if the connection can be used by another request
+     */
+    void release(ProxyConnection connection, boolean reusable) {
+        if(reusable && idle.size() < maxIdle) {
+            connection.idle(System.currentTimeMillis());
+            idle.offerFirst(connection);
+        } else {
+            connection.close();
+        }
+
+        permits.release();
+    }
+
+    /**
+     * Close the connections idle for too long
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<ProxyConnection> it = idle.descendingIterator();
+
+        while(it.hasNext()) {
+            ProxyConnection connection = it.next();
+
+            if(now - connection.getLastUsed() >= idleTimeout && idle.removeFirstOccurrence(connection))
+                connection.close();
+        }
+    }
+
+    /**
+     * Return the number of connections currently used by a request
+     * @return The active connections
+     */
+    public int getActive() {
+        return maxTotal - permits.availablePermits();
+    }
+
+    /**
+     * Return the number of idle connections
+     * @return The idle connections
+     */
+    public int getIdle() {
+        return idle.size();
+    }
+}
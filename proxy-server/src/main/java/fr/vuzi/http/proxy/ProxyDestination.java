@@ -0,0 +1,182 @@
+package fr.vuzi.http.proxy;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Upstream server of the proxy, with its pool of persistent connections, the load statistics used by the load
+ * balancers and its health. A server failing too many times in a row is ejected for a while, longer after each
+ * ejection, and then gets a growing share of the requests during its slow start
+ */
+public class ProxyDestination {
+
+    private static Logger logger = Logger.getLogger(ProxyDestination.class.getCanonicalName());
+
+    private final String host;
+    private final int port;
+    private final ProxyConnectionPool connections;
+
+    private final AtomicInteger outstanding = new AtomicInteger(0);
+
+    private final double decay;
+    private double latency = 0;
+    private long latencyTime = System.nanoTime();
+
+    private final int maxFailures;
+    private final long ejectionTime;
+    private final long maxEjectionTime;
+    private final long slowStart;
+
+    private int failures = 0;
+    private int ejections = 0;
+    private long ejectedAt = 0;
+    private long ejectedUntil = 0;
+    private long rejoinedAt = 0;
+    private boolean probeHealthy = true;
+
+    public ProxyDestination(String host, int port, Map<String, String> parameters) {
+        this.host = host;
+        this.port = port;
+        this.connections = new ProxyConnectionPool(this, parameters);
+        this.decay = Long.valueOf(parameters.getOrDefault("balancer.ewma.decay", "10000")) * 1e6;
+
+        this.maxFailures = Integer.valueOf(parameters.getOrDefault("health.max_failures", "3"));
+        this.ejectionTime = Long.valueOf(parameters.getOrDefault("health.ejection_time", "5000"));
+        this.maxEjectionTime = Long.valueOf(parameters.getOrDefault("health.max_ejection_time", "60000"));
+        this.slowStart = Long.valueOf(parameters.getOrDefault("health.slow_start", "10000"));
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ProxyConnectionPool getConnections() {
+        return connections;
+    }
+
+    /**
+     * Signal a new request sent to the server
+     */
+    public void requestStarted() {
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * Signal the end of a request, once its response is fully read or failed
+     */
+    public void requestFinished() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Return the number of requests sent to the server and not finished yet
+     * @return The outstanding requests
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Add a latency sample to the peak-sensitive moving average : a sample above the average replaces it, while the
+     * others are averaged in with a weight decaying over time
+     * @param sample The time to receive the response head, in ns
+     * @param now The current time, in ns
+     */
+    public synchronized void recordLatency(long sample, long now) {
+        double value = sample / 1e6;
+        double weight = Math.exp(-(now - latencyTime) / decay);
+
+        latency = value > latency ? value : latency * weight + value * (1 - weight);
+        latencyTime = now;
+    }
+
+    /**
+     * Return the moving average latency, decaying while no response is received so an idle server gets tried again
+     * @param now The current time, in ns
+     * @return The latency, in ms
+     */
+    public synchronized double getLatency(long now) {
+        return latency * Math.exp(-(now - latencyTime) / decay);
+    }
+
+    /**
+     * Return true if the server can take requests : not ejected, and answering to the health checks
+     * @param now The current time, in ms
+     * @return True if the server is available
+     */
+    public synchronized boolean isAvailable(long now) {
+        return probeHealthy && now >= ejectedUntil;
+    }
+
+    /**
+     * Return the share of the requests the server should take, growing from 0 to 1 during its slow start
+     * @param now The current time, in ms
+     * @return The server weight
+     */
+    public synchronized double getWeight(long now) {
+        if(rejoinedAt == 0 || slowStart <= 0 || now - rejoinedAt >= slowStart)
+            return 1;
+
+        return Math.max(0.05, (double) (now - rejoinedAt) / slowStart);
+    }
+
+    /**
+     * Signal a successful exchange with the server
+     * @param now The current time, in ms
+     */
+    public synchronized void success(long now) {
+        failures = 0;
+
+        // The ejection backoff is forgotten once the server stays up long enough
+        if(ejections > 0 && now - ejectedAt >= maxEjectionTime)
+            ejections = 0;
+    }
+
+    /**
+     * Signal a failed exchange with the server, ejecting it after too many consecutive failures
+     * @param now The current time, in ms
+     */
+    public synchronized void failure(long now) {
+        if(++failures >= maxFailures && now >= ejectedUntil)
+            eject(now);
+    }
+
+    /**
+     * Update the server health with the result of an active check
+     * @param healthy True if the server answered correctly
+     * @param now The current time, in ms
+     */
+    public synchronized void probed(boolean healthy, long now) {
+        if(healthy && !probeHealthy) {
+            probeHealthy = true;
+            rejoinedAt = Math.max(now, ejectedUntil);
+            logger.log(Level.INFO, String.format("Server %s is healthy again", this));
+        } else if(!healthy && probeHealthy) {
+            probeHealthy = false;
+            eject(now);
+        }
+    }
+
+    private void eject(long now) {
+        long duration = Math.min(maxEjectionTime, ejectionTime << Math.min(ejections, 16));
+
+        failures = 0;
+        ejections++;
+        ejectedAt = now;
+        ejectedUntil = now + duration;
+        rejoinedAt = ejectedUntil;
+
+        logger.log(Level.WARNING, String.format("Server %s ejected for %dms", this, duration));
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
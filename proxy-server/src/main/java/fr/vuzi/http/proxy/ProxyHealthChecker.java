@@ -0,0 +1,71 @@
+package fr.vuzi.http.proxy;
+
+import fr.vuzi.http.impl.HttpResponse;
+import fr.vuzi.http.request.HttpMessageReader;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background health checks of the upstream servers. Each server is periodically probed, with a connection only or
+ * with a GET request on the configured path, expecting a 2xx or 3xx status
+ */
+public class ProxyHealthChecker {
+
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, r -> {
+        Thread t = new Thread(r, "proxy-health-checker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String path;
+    private final int timeout;
+
+    public ProxyHealthChecker(List<ProxyDestination> destinations, Map<String, String> parameters) {
+        long interval = Long.valueOf(parameters.getOrDefault("health.interval", "5000"));
+
+        this.path = parameters.get("health.path");
+        this.timeout = Integer.valueOf(parameters.getOrDefault("health.timeout", "2000"));
+
+        if(interval <= 0)
+            return;
+
+        for(ProxyDestination destination : destinations)
+            scheduler.scheduleWithFixedDelay(() -> probe(destination), interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void probe(ProxyDestination destination) {
+        boolean healthy;
+
+        try(Socket socket = new Socket()) {
+            socket.setSoTimeout(timeout);
+            socket.connect(new InetSocketAddress(destination.getHost(), destination.getPort()), timeout);
+
+            if(path != null) {
+                OutputStream outputStream = socket.getOutputStream();
+                outputStream.write(("GET " + path + " HTTP/1.1\r\n" +
+                        "Host: " + destination.getHost() + "\r\n" +
+                        "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                outputStream.flush();
+
+                HttpResponse response = new HttpResponse();
+                new HttpMessageReader(socket.getInputStream()).readResponse(response);
+
+                healthy = response.getStatus() >= 200 && response.getStatus() < 400;
+            } else {
+                healthy = true;
+            }
+        } catch (Exception e) {
+            healthy = false;
+        }
+
+        destination.probed(healthy, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,85 @@
+package fr.vuzi.http.proxy.balancer;
+
+import fr.vuzi.http.proxy.ProxyDestination;
+import fr.vuzi.http.request.HttpCookie;
+import fr.vuzi.http.request.IHttpRequest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Send the requests with the same key, read from a header or a cookie, to the same server. Servers are placed on a
+ * hash ring with several virtual nodes each, so adding or removing a server only moves the keys of its neighbors.
+ * Requests without a key are sent in turn to each server
+ */
+public class ConsistentHashBalancer implements ILoadBalancer {
+
+    private final TreeMap<Long, ProxyDestination> ring = new TreeMap<>();
+
+    private final String header;
+    private final String cookie;
+
+    private final RoundRobinBalancer fallback = new RoundRobinBalancer();
+
+    public ConsistentHashBalancer(List<ProxyDestination> destinations, Map<String, String> parameters) {
+        this.header = parameters.get("balancer.hash.header");
+        this.cookie = header == null ? parameters.getOrDefault("balancer.hash.cookie", "ID") : null;
+
+        int replicas = Integer.valueOf(parameters.getOrDefault("balancer.hash.replicas", "160"));
+
+        for(ProxyDestination destination : destinations) {
+            for(int i = 0; i < replicas; i++)
+                ring.put(hash(destination + "#" + i), destination);
+        }
+    }
+
+    @Override
+    public ProxyDestination select(List<ProxyDestination> destinations, IHttpRequest request) {
+        String key = getKey(request);
+        if(key == null)
+            return fallback.select(destinations, request);
+
+        // First available server clockwise from the key
+        long hash = hash(key);
+
+        for(ProxyDestination destination : ring.tailMap(hash).values()) {
+            if(destinations.contains(destination))
+                return destination;
+        }
+
+        for(ProxyDestination destination : ring.headMap(hash).values()) {
+            if(destinations.contains(destination))
+                return destination;
+        }
+
+        return fallback.select(destinations, request);
+    }
+
+    private String getKey(IHttpRequest request) {
+        if(header != null)
+            return request.getHeader(header);
+
+        HttpCookie value = request.getCookie(cookie);
+        return value != null ? value.getValue() : null;
+    }
+
+    /**
+     * 64 bits FNV-1a hash, with a final mix to spread the close keys over the ring
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+
+        for(byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+}
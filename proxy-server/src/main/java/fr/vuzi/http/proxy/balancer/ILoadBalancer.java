@@ -0,0 +1,20 @@
+package fr.vuzi.http.proxy.balancer;
+
+import fr.vuzi.http.proxy.ProxyDestination;
+import fr.vuzi.http.request.IHttpRequest;
+
+import java.util.List;
+
+/**
+ * Strategy choosing the upstream server of each proxied request
+ */
+public interface ILoadBalancer {
+
+    /**
+     * Choose the server of the request
+     * @param destinations The servers able to take the request, never empty
+     * @param request The request
+     * @return The chosen server, from the provided list
+     */
+    ProxyDestination select(List<ProxyDestination> destinations, IHttpRequest request);
+}
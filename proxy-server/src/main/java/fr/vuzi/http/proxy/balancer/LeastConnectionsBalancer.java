@@ -0,0 +1,31 @@
+package fr.vuzi.http.proxy.balancer;
+
+import fr.vuzi.http.proxy.ProxyDestination;
+import fr.vuzi.http.request.IHttpRequest;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Send the requests to the server with the fewest outstanding requests. The scan starts from a rotating position, so
+ * servers with the same load share the requests
+ */
+public class LeastConnectionsBalancer implements ILoadBalancer {
+
+    private final AtomicInteger index = new AtomicInteger(0);
+
+    @Override
+    public ProxyDestination select(List<ProxyDestination> destinations, IHttpRequest request) {
+        int start = index.getAndIncrement() & Integer.MAX_VALUE;
+        ProxyDestination best = null;
+
+        for(int i = 0; i < destinations.size(); i++) {
+            ProxyDestination destination = destinations.get((start + i) % destinations.size());
+
+            if(best == null || destination.getOutstanding() < best.getOutstanding())
+                best = destination;
+        }
+
+        return best;
+    }
+}
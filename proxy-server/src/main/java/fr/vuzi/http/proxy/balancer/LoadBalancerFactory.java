@@ -0,0 +1,40 @@
+package fr.vuzi.http.proxy.balancer;
+
+import fr.vuzi.http.proxy.ProxyDestination;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Create the load balancer selected by the service parameters
+ */
+public class LoadBalancerFactory {
+
+    /**
+     * Create the load balancer using the "balancer" parameter : "round-robin" (default), "least-conn", "peak-ewma",
+     * "p2c" or "hash"
+     * @param destinations All the servers of the pool
+     * @param parameters The service parameters
+     * @return The load balancer
+     * @throws Exception If the balancer is unknown
+     */
+    public static ILoadBalancer create(List<ProxyDestination> destinations, Map<String, String> parameters)
+            throws Exception {
+        String balancer = parameters.getOrDefault("balancer", "round-robin").trim();
+
+        switch (balancer) {
+            case "round-robin":
+                return new RoundRobinBalancer();
+            case "least-conn":
+                return new LeastConnectionsBalancer();
+            case "peak-ewma":
+                return new PeakEwmaBalancer();
+            case "p2c":
+                return new PowerOfTwoChoicesBalancer();
+            case "hash":
+                return new ConsistentHashBalancer(destinations, parameters);
+            default:
+                throw new Exception("Unknown load balancer " + balancer);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package fr.vuzi.http.proxy.balancer;
+
+import fr.vuzi.http.proxy.ProxyDestination;
+import fr.vuzi.http.request.IHttpRequest;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Send the requests to the server with the lowest cost, the cost being its peak-sensitive moving average latency
+ * weighted by its outstanding requests. A server slowing down is avoided as soon as one slow response is seen
+ */
+public class PeakEwmaBalancer implements ILoadBalancer {
+
+    private final AtomicInteger index = new AtomicInteger(0);
+
+    @Override
+    public ProxyDestination select(List<ProxyDestination> destinations, IHttpRequest request) {
+        int start = index.getAndIncrement() & Integer.MAX_VALUE;
+        long now = System.nanoTime();
+        ProxyDestination best = null;
+        double bestCost = Double.MAX_VALUE;
+
+        for(int i = 0; i < destinations.size(); i++) {
+            ProxyDestination destination = destinations.get((start + i) % destinations.size());
+            double cost = cost(destination, now);
+
+            if(cost < bestCost) {
+                best = destination;
+                bestCost = cost;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Return the cost of sending a new request to the server
+     * @param destination The server
+     * @param now The current time, in ns
+     * @return The cost
+     */
+    static double cost(ProxyDestination destination, long now) {
+        // Offset so the outstanding requests still count while the latency is unknown
+        return (destination.getLatency(now) + 0.001) * (destination.getOutstanding() + 1);
+    }
+}
@@ -0,0 +1,33 @@
+package fr.vuzi.http.proxy.balancer;
+
+import fr.vuzi.http.proxy.ProxyDestination;
+import fr.vuzi.http.request.IHttpRequest;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Pick two random servers and send the request to the one with the lowest peak-EWMA cost. Unlike a full scan, the
+ * concurrent requests don't all rush to the same best server
+ */
+public class PowerOfTwoChoicesBalancer implements ILoadBalancer {
+
+    @Override
+    public ProxyDestination select(List<ProxyDestination> destinations, IHttpRequest request) {
+        int size = destinations.size();
+        if(size == 1)
+            return destinations.get(0);
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        if(second >= first)
+            second++;
+
+        long now = System.nanoTime();
+        ProxyDestination a = destinations.get(first);
+        ProxyDestination b = destinations.get(second);
+
+        return PeakEwmaBalancer.cost(a, now) <= PeakEwmaBalancer.cost(b, now) ? a : b;
+    }
+}
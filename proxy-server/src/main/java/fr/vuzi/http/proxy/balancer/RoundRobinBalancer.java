@@ -0,0 +1,20 @@
+package fr.vuzi.http.proxy.balancer;
+
+import fr.vuzi.http.proxy.ProxyDestination;
+import fr.vuzi.http.request.IHttpRequest;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Send the requests to each server in turn
+ */
+public class RoundRobinBalancer implements ILoadBalancer {
+
+    private final AtomicInteger index = new AtomicInteger(0);
+
+    @Override
+    public ProxyDestination select(List<ProxyDestination> destinations, IHttpRequest request) {
+        return destinations.get((index.getAndIncrement() & Integer.MAX_VALUE) % destinations.size());
+    }
+}
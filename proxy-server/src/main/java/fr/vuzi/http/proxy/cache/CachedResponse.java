@@ -0,0 +1,127 @@
+package fr.vuzi.http.proxy.cache;
+
+import fr.vuzi.http.request.HttpDate;
+import fr.vuzi.http.request.HttpEncoding;
+import fr.vuzi.http.request.IHttpResponse;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Response stored by the proxy cache, with its freshness information
+ */
+public class CachedResponse implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+    private final int status;
+    private final String textStatus;
+    private final HashMap<String, String> headers;
+    private final byte[] body;
+
+    private volatile long storedAt;
+    private volatile long initialAge;
+    private volatile long lifetime;
+    private volatile long staleWhileRevalidate;
+
+    CachedResponse(String key, int status, String textStatus, Map<String, String> headers, byte[] body) {
+        this.key = key;
+        this.status = status;
+        this.textStatus = textStatus;
+        this.headers = new HashMap<>(headers);
+        this.body = body;
+    }
+
+    /**
+     * Set the freshness of the response, when it is stored or revalidated
+     * @param storedAt The date the response was received, in ms
+     * @param initialAge The age of the response when received, in ms
+     * @param lifetime The freshness lifetime, in ms
+     * @param staleWhileRevalidate The time the response can be used stale while being revalidated, in ms
+     */
+    void setFreshness(long storedAt, long initialAge, long lifetime, long staleWhileRevalidate) {
+        this.storedAt = storedAt;
+        this.initialAge = initialAge;
+        this.lifetime = lifetime;
+        this.staleWhileRevalidate = staleWhileRevalidate;
+    }
+
+    /**
+     * Update the headers with the ones of a 304 revalidation response
+     * @param updated The new headers
+     */
+    void updateHeaders(Map<String, String> updated) {
+        synchronized (headers) {
+            headers.putAll(updated);
+        }
+    }
+
+    public long getAge(long now) {
+        return initialAge + Math.max(0, now - storedAt);
+    }
+
+    public boolean isFresh(long now) {
+        return getAge(now) < lifetime;
+    }
+
+    /**
+     * Return true if the response is stale, but can still be sent while it is revalidated
+     * @param now The current time, in ms
+     * @return True if the response can be used
+     */
+    public boolean isStaleUsable(long now) {
+        return getAge(now) < lifetime + staleWhileRevalidate;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getHeader(String name) {
+        synchronized (headers) {
+            return headers.get(name);
+        }
+    }
+
+    int getSize() {
+        return body.length + headers.size() * 64 + key.length();
+    }
+
+    /**
+     * Answer with the stored response, or with a 304 if the client's copy matches : If-None-Match if present, else
+     * If-Modified-Since
+     * @param response The response
+     * @param ifNoneMatch The If-None-Match header of the client, may be null
+     * @param ifModifiedSince The If-Modified-Since header of the client, may be null
+     * @param now The current time, in ms
+     */
+    public void writeTo(IHttpResponse response, String ifNoneMatch, String ifModifiedSince, long now) {
+        boolean notModified;
+
+        if(ifNoneMatch != null) {
+            String etag = getHeader("etag");
+            notModified = etag != null && (ifNoneMatch.trim().equals("*") || ifNoneMatch.contains(etag));
+        } else {
+            // Dates have a second precision, and dates in the future are invalid
+            long modifiedSince = HttpDate.parse(ifModifiedSince);
+            long lastModified = HttpDate.parse(getHeader("last-modified"));
+
+            notModified = status == 200 && modifiedSince >= 0 && lastModified >= 0 && modifiedSince <= now &&
+                    lastModified / 1000 <= modifiedSince / 1000;
+        }
+
+        response.setStatus(notModified ? 304 : status);
+        response.setTextStatus(notModified ? null : textStatus);
+        response.setEncodingType(HttpEncoding.NONE);
+
+        synchronized (headers) {
+            response.getHeaders().putAll(headers);
+        }
+        response.setHeader("Age", String.valueOf(getAge(now) / 1000));
+
+        if(!notModified)
+            response.setBody(body);
+    }
+}
@@ -0,0 +1,484 @@
+package fr.vuzi.http.proxy.cache;
+
+import fr.vuzi.http.error.HttpException;
+import fr.vuzi.http.impl.HttpRequest;
+import fr.vuzi.http.impl.HttpResponse;
+import fr.vuzi.http.request.ChunkedInputStream;
+import fr.vuzi.http.request.HttpDate;
+import fr.vuzi.http.request.HttpEncoding;
+import fr.vuzi.http.request.IHttpRequest;
+import fr.vuzi.http.request.IHttpResponse;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shared HTTP cache of the proxy responses. GET responses are stored according to their Cache-Control or
+ * Expires headers (or a heuristic based on Last-Modified), keyed on the host, the location and the headers listed in
+ * their Vary header. Stale responses are revalidated with their ETag or Last-Modified date, and can still be sent
+ * while being revalidated in the background if allowed by stale-while-revalidate. Concurrent misses on the same key
+ * only make one upstream request
+ */
+public class ProxyCache {
+
+    private static Logger logger = Logger.getLogger(ProxyCache.class.getCanonicalName());
+
+    private static final ExecutorService revalidator = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "proxy-cache-revalidator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final Set<Integer> CACHEABLE_STATUS = new HashSet<>(
+            Arrays.asList(200, 203, 204, 300, 301, 404, 405, 410, 414, 501));
+
+    private static final long MAX_HEURISTIC_LIFETIME = 86400000; // 1 day
+
+    /**
+     * Upstream of the cache, used on misses and revalidations
+     */
+    public interface Upstream {
+        void fetch(IHttpRequest request, IHttpResponse response) throws HttpException;
+    }
+
+    private final long maxSize;
+    private final int maxEntrySize;
+    private final long coalesceTimeout;
+    private final ProxyDiskCache disk;
+
+    private final LinkedHashMap<String, CachedResponse> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long size = 0;
+
+    private final ConcurrentHashMap<String, List<String>> varyHeaders = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<CachedResponse>> pending = new ConcurrentHashMap<>();
+
+    public ProxyCache(Map<String, String> parameters) throws IOException {
+        this.maxSize = Long.valueOf(parameters.getOrDefault("cache.size", "67108864"));
+        this.maxEntrySize = Integer.valueOf(parameters.getOrDefault("cache.max_entry", "1048576"));
+        this.coalesceTimeout = Long.valueOf(parameters.getOrDefault("cache.coalesce_timeout", "30000"));
+
+        String diskPath = parameters.get("cache.disk");
+        this.disk = diskPath == null ? null :
+                new ProxyDiskCache(new File(diskPath), Long.valueOf(parameters.getOrDefault("cache.disk.size",
+                        "1073741824")));
+    }
+
+    /**
+     * Serve the request from the cache, or from the upstream if needed
+     * @param request The request
+     * @param response The response
+     * @param upstream The upstream
+     * @throws HttpException
+     */
+    public void serve(IHttpRequest request, IHttpResponse response, Upstream upstream) throws HttpException {
+        if(!isCacheable(request)) {
+            upstream.fetch(request, response);
+            return;
+        }
+
+        String primaryKey = request.getHostname() + request.getLocation();
+        String key = getKey(primaryKey, request);
+        String ifNoneMatch = request.getHeader("if-none-match");
+        String ifModifiedSince = request.getHeader("if-modified-since");
+        long now = System.currentTimeMillis();
+
+        CachedResponse cached = lookup(key);
+
+        if(cached != null && !hasDirective(request.getHeader("cache-control"), "no-cache")) {
+            if(cached.isFresh(now)) {
+                cached.writeTo(response, ifNoneMatch, ifModifiedSince, now);
+                return;
+            }
+
+            if(cached.isStaleUsable(now)) {
+                revalidateLater(primaryKey, key, copy(request), cached, upstream);
+                cached.writeTo(response, ifNoneMatch, ifModifiedSince, now);
+                return;
+            }
+        }
+
+        // Miss, or stale response : only one request goes to the upstream
+        CompletableFuture<CachedResponse> future = new CompletableFuture<>();
+        CompletableFuture<CachedResponse> existing = pending.putIfAbsent(key, future);
+
+        if(existing != null) {
+            try {
+                CachedResponse shared = existing.get(coalesceTimeout, TimeUnit.MILLISECONDS);
+
+                if(shared != null) {
+                    shared.writeTo(response, ifNoneMatch, ifModifiedSince, System.currentTimeMillis());
+                    return;
+                }
+            } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                // Served alone
+            }
+
+            fetch(primaryKey, key, request, response, cached, upstream);
+            return;
+        }
+
+        CachedResponse stored = null;
+
+        try {
+            stored = fetch(primaryKey, key, request, response, cached, upstream);
+        } finally {
+            pending.remove(key, future);
+            future.complete(stored);
+        }
+    }
+
+    /**
+     * Request the upstream, store the response if possible and answer with it
+     * @return The stored response, or null if the response can't be stored
+     */
+    private CachedResponse fetch(String primaryKey, String key, IHttpRequest request, IHttpResponse response,
+                                 CachedResponse cached, Upstream upstream) throws HttpException {
+        String ifNoneMatch = request.getHeader("if-none-match");
+        String ifModifiedSince = request.getHeader("if-modified-since");
+        HttpResponse upstreamResponse = new HttpResponse();
+
+        // Revalidation of the stored response, the conditions of the client being answered from it. Without stored
+        // response, the conditions are kept so the upstream can answer them if its response can't be stored
+        if(cached != null) {
+            request.getHeaders().remove("if-none-match");
+            request.getHeaders().remove("if-modified-since");
+            if(cached.getHeader("etag") != null)
+                request.getHeaders().put("if-none-match", cached.getHeader("etag"));
+            if(cached.getHeader("last-modified") != null)
+                request.getHeaders().put("if-modified-since", cached.getHeader("last-modified"));
+        }
+
+        upstream.fetch(request, upstreamResponse);
+        long now = System.currentTimeMillis();
+
+        if(cached != null && upstreamResponse.getStatus() == 304) {
+            discard(upstreamResponse);
+
+            cached.updateHeaders(upstreamResponse.getHeaders());
+            setFreshness(cached, now);
+            store(primaryKey, cached, Collections.emptyList());
+
+            if(response != null)
+                cached.writeTo(response, ifNoneMatch, ifModifiedSince, now);
+            return cached;
+        }
+
+        CachedResponse stored = null;
+        InputStream body = upstreamResponse.getBody();
+
+        if(isStorable(upstreamResponse)) {
+            // Chunks relayed as received are decoded, the stored body being framed again when sent
+            String transferEncoding = upstreamResponse.getHeaders().remove("transfer-encoding");
+            if(transferEncoding != null && transferEncoding.toLowerCase().endsWith("chunked"))
+                body = new ChunkedInputStream(body);
+
+            try {
+                // Read the body, up to the entry size limit
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                byte[] chunk = new byte[8192];
+                int byteRead;
+
+                while(buffer.size() <= maxEntrySize && (byteRead = body.read(chunk)) >= 0)
+                    buffer.write(chunk, 0, byteRead);
+
+                if(buffer.size() <= maxEntrySize) {
+                    discard(upstreamResponse);
+
+                    Map<String, String> headers = new HashMap<>(upstreamResponse.getHeaders());
+                    headers.remove("content-length");
+
+                    List<String> vary = getVary(upstreamResponse);
+                    stored = new CachedResponse(buildKey(primaryKey, vary, request), upstreamResponse.getStatus(),
+                            upstreamResponse.getTextStatus(), headers, buffer.toByteArray());
+                    setFreshness(stored, now);
+                    store(primaryKey, stored, vary);
+                } else {
+                    // Too large, sent as it is received
+                    upstreamResponse.getHeaders().remove("content-length");
+                    body = releasing(new SequenceInputStream(new ByteArrayInputStream(buffer.toByteArray()), body),
+                            upstreamResponse.getBody());
+                }
+            } catch (IOException e) {
+                close(upstreamResponse);
+                throw new HttpException(502, "Error during proxy request processing", e);
+            }
+        }
+
+        if(response == null) {
+            if(stored == null)
+                close(upstreamResponse);
+        } else if(stored != null) {
+            stored.writeTo(response, ifNoneMatch, ifModifiedSince, now);
+        } else {
+            response.setStatus(upstreamResponse.getStatus());
+            response.setTextStatus(upstreamResponse.getTextStatus());
+            response.setEncodingType(HttpEncoding.NONE);
+            response.getHeaders().putAll(upstreamResponse.getHeaders());
+            response.setBody(body);
+        }
+
+        return stored;
+    }
+
+    /**
+     * Revalidate the response in the background, unless it is already being revalidated
+     */
+    private void revalidateLater(String primaryKey, String key, IHttpRequest request, CachedResponse cached,
+                                 Upstream upstream) {
+        CompletableFuture<CachedResponse> future = new CompletableFuture<>();
+        if(pending.putIfAbsent(key, future) != null)
+            return;
+
+        revalidator.execute(() -> {
+            CachedResponse stored = null;
+
+            try {
+                stored = fetch(primaryKey, key, request, null, cached, upstream);
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Background revalidation failed", e);
+            } finally {
+                pending.remove(key, future);
+                future.complete(stored);
+            }
+        });
+    }
+
+    private CachedResponse lookup(String key) {
+        CachedResponse cached;
+
+        synchronized (entries) {
+            cached = entries.get(key);
+        }
+
+        if(cached == null && disk != null) {
+            cached = disk.take(key);
+
+            if(cached != null)
+                store(null, cached, null);
+        }
+
+        return cached;
+    }
+
+    /**
+     * Store the response in memory, moving the least recently used ones to the disk tier if any
+     * @param primaryKey The key without the varying headers, null to keep the known Vary headers
+     * @param response The response
+     * @param vary The Vary headers of the response
+     */
+    private void store(String primaryKey, CachedResponse response, List<String> vary) {
+        if(primaryKey != null && vary != null && !vary.isEmpty())
+            varyHeaders.put(primaryKey, vary);
+
+        List<CachedResponse> evicted = new ArrayList<>();
+
+        synchronized (entries) {
+            CachedResponse previous = entries.put(response.getKey(), response);
+            if(previous != null)
+                size -= previous.getSize();
+
+            size += response.getSize();
+
+            Iterator<CachedResponse> it = entries.values().iterator();
+            while(size > maxSize && it.hasNext()) {
+                CachedResponse entry = it.next();
+                if(entry == response)
+                    continue;
+
+                it.remove();
+                size -= entry.getSize();
+                evicted.add(entry);
+            }
+        }
+
+        if(disk != null) {
+            for(CachedResponse entry : evicted)
+                disk.put(entry);
+        }
+    }
+
+    private String getKey(String primaryKey, IHttpRequest request) {
+        return buildKey(primaryKey, varyHeaders.getOrDefault(primaryKey, Collections.emptyList()), request);
+    }
+
+    private static String buildKey(String primaryKey, List<String> vary, IHttpRequest request) {
+        StringBuilder key = new StringBuilder(primaryKey);
+
+        for(String header : vary)
+            key.append('\n').append(header).append(": ").append(request.getHeader(header));
+
+        return key.toString();
+    }
+
+    private static boolean isCacheable(IHttpRequest request) {
+        // HEAD responses are forwarded, their stored body would give them a wrong length
+        return "GET".equals(request.getMethod()) && request.getHeader("authorization") == null &&
+                !hasDirective(request.getHeader("cache-control"), "no-store");
+    }
+
+    private static boolean isStorable(IHttpResponse response) {
+        String cacheControl = response.getHeaders().get("cache-control");
+
+        if(!CACHEABLE_STATUS.contains(response.getStatus()) || response.getHeaders().containsKey("set-cookie"))
+            return false;
+
+        if(hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private"))
+            return false;
+
+        String vary = response.getHeaders().get("vary");
+        if(vary != null && vary.trim().equals("*"))
+            return false;
+
+        // Something is needed to know when the response is fresh, or to revalidate it
+        return getDirective(cacheControl, "s-maxage") != null || getDirective(cacheControl, "max-age") != null ||
+                response.getHeaders().containsKey("expires") || response.getHeaders().containsKey("etag") ||
+                response.getHeaders().containsKey("last-modified");
+    }
+
+    private static List<String> getVary(IHttpResponse response) {
+        String vary = response.getHeaders().get("vary");
+        if(vary == null)
+            return Collections.emptyList();
+
+        List<String> headers = new ArrayList<>();
+        for(String header : vary.split(","))
+            headers.add(header.trim().toLowerCase());
+
+        Collections.sort(headers);
+        return headers;
+    }
+
+    /**
+     * Compute the freshness of the response from its headers
+     */
+    private static void setFreshness(CachedResponse response, long now) {
+        String cacheControl = response.getHeader("cache-control");
+        Long date = parseDate(response.getHeader("date"));
+        long lifetime;
+
+        if(hasDirective(cacheControl, "no-cache")) {
+            lifetime = 0;
+        } else if(getDirective(cacheControl, "s-maxage") != null) {
+            lifetime = getDirective(cacheControl, "s-maxage") * 1000;
+        } else if(getDirective(cacheControl, "max-age") != null) {
+            lifetime = getDirective(cacheControl, "max-age") * 1000;
+        } else if(response.getHeader("expires") != null) {
+            Long expires = parseDate(response.getHeader("expires"));
+            lifetime = expires == null ? 0 : Math.max(0, expires - (date != null ? date : now));
+        } else {
+            // Heuristic freshness, a tenth of the time since the last modification
+            Long lastModified = parseDate(response.getHeader("last-modified"));
+            lifetime = lastModified == null ? 0 :
+                    Math.min(MAX_HEURISTIC_LIFETIME, Math.max(0, (date != null ? date : now) - lastModified) / 10);
+        }
+
+        Long age = getDirective("age=" + response.getHeader("age"), "age");
+        Long staleWhileRevalidate = getDirective(cacheControl, "stale-while-revalidate");
+
+        response.setFreshness(now, age != null ? age * 1000 : 0, lifetime,
+                hasDirective(cacheControl, "must-revalidate") || staleWhileRevalidate == null ?
+                        0 : staleWhileRevalidate * 1000);
+    }
+
+    private static boolean hasDirective(String cacheControl, String directive) {
+        if(cacheControl == null)
+            return false;
+
+        for(String value : cacheControl.split(",")) {
+            value = value.trim().toLowerCase();
+
+            if(value.equals(directive) || value.startsWith(directive + "="))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Return the numeric value of a directive, in seconds
+     * @return The value, or null if the directive is missing or invalid
+     */
+    private static Long getDirective(String cacheControl, String directive) {
+        if(cacheControl == null)
+            return null;
+
+        for(String value : cacheControl.split(",")) {
+            value = value.trim().toLowerCase();
+
+            if(value.startsWith(directive + "=")) {
+                try {
+                    return Math.max(0, Long.parseLong(value.substring(directive.length() + 1).replace("\"", "")));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static Long parseDate(String date) {
+        long time = HttpDate.parse(date);
+
+        return time < 0 ? null : time;
+    }
+
+    /**
+     * Copy the request, to revalidate it once the original request is finished
+     */
+    private static IHttpRequest copy(IHttpRequest request) {
+        HttpRequest copy = new HttpRequest();
+        copy.setMethod(request.getMethod());
+        copy.setLocation(request.getLocation());
+        copy.setProtocol(request.getProtocol());
+        copy.setHeaders(new HashMap<>(request.getHeaders()));
+        copy.setClientAddress(request.getClientAddress());
+        copy.setBodyStream(new ByteArrayInputStream(new byte[0]));
+
+        return copy;
+    }
+
+    /**
+     * Wrap the body sent to the client so closing it also closes the upstream body, releasing its connection, as the
+     * chunked decoder leaves the underlying stream open
+     */
+    private static InputStream releasing(InputStream body, InputStream upstreamBody) {
+        return new FilterInputStream(body) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    upstreamBody.close();
+                }
+            }
+        };
+    }
+
+    private static void close(HttpResponse response) {
+        try {
+            if(response.getBody() != null)
+                response.getBody().close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Upstream body closing failed", e);
+        }
+    }
+
+    /**
+     * Read the end of the body before closing it, so the upstream connection can be reused
+     */
+    private static void discard(HttpResponse response) {
+        try {
+            if(response.getBody() != null) {
+                while(response.getBody().read() >= 0);
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Upstream body reading failed", e);
+        }
+
+        close(response);
+    }
+}
@@ -0,0 +1,115 @@
+package fr.vuzi.http.proxy.cache;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * On-disk tier of the proxy cache, holding the responses evicted from memory. Each response is a file named after
+ * the hash of its key, and the least recently used files are deleted above the size limit. The index is only kept
+ * in memory, so the directory is emptied at startup
+ */
+public class ProxyDiskCache {
+
+    private static Logger logger = Logger.getLogger(ProxyDiskCache.class.getCanonicalName());
+
+    private final File directory;
+    private final long maxSize;
+
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(64, 0.75f, true);
+    private long size = 0;
+
+    public ProxyDiskCache(File directory, long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("The cache directory " + directory.getAbsolutePath() + " can't be created");
+
+        File[] previous = directory.listFiles((dir, name) -> name.endsWith(".cache"));
+        if(previous != null) {
+            for(File file : previous)
+                file.delete();
+        }
+    }
+
+    /**
+     * Store a response
+     * @param response The response
+     */
+    public void put(CachedResponse response) {
+        String name = fileName(response.getKey());
+        File file = new File(directory, name);
+
+        try(ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeObject(response);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cache file writing failed", e);
+            file.delete();
+            return;
+        }
+
+        synchronized (files) {
+            Long previous = files.put(name, file.length());
+            size += file.length() - (previous != null ? previous : 0);
+
+            Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+            while(size > maxSize && it.hasNext()) {
+                Map.Entry<String, Long> evicted = it.next();
+                if(evicted.getKey().equals(name))
+                    continue;
+
+                it.remove();
+                size -= evicted.getValue();
+                new File(directory, evicted.getKey()).delete();
+            }
+        }
+    }
+
+    /**
+     * Remove and return a response
+     * @param key The response key
+     * @return The response, or null if not stored
+     */
+    public CachedResponse take(String key) {
+        String name = fileName(key);
+
+        synchronized (files) {
+            Long length = files.remove(name);
+            if(length == null)
+                return null;
+
+            size -= length;
+        }
+
+        File file = new File(directory, name);
+
+        try(ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            CachedResponse response = (CachedResponse) in.readObject();
+            return key.equals(response.getKey()) ? response : null;
+        } catch (IOException | ClassNotFoundException e) {
+            logger.log(Level.WARNING, "Cache file reading failed", e);
+            return null;
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static String fileName(String key) {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for(byte b : MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8)))
+                sb.append(String.format("%02x", b));
+
+            return sb.append(".cache").toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
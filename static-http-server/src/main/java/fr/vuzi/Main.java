@@ -1,7 +1,7 @@
 package fr.vuzi;
 
+import fr.vuzi.http.HttpServerFactory;
 import fr.vuzi.http.IHttpServer;
-import fr.vuzi.http.impl.HttpServer;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -21,8 +21,7 @@ public class Main {
             Properties properties = new Properties();
             properties.load(new FileInputStream(new File("resources/main/conf.properties")));
 
-            IHttpServer server = new HttpServer();
-            server.configure(properties);
+            IHttpServer server = HttpServerFactory.create(properties);
             server.run(8081);
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Could not load or use configuration file", e);
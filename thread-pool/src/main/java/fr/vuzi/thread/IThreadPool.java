@@ -0,0 +1,38 @@
+package fr.vuzi.thread;
+
+/**
+ * Interface for a thread pool executing prioritized actions
+ */
+public interface IThreadPool {
+
+    /**
+     * Submit an action to execute. Actions with the lowest priority value are executed first
+     * @param priority The action priority
+     * @param action The action
+     * @throws RejectedActionException If the pool is full, and its policy is to reject the action
+     */
+    void submit(int priority, Action action);
+
+    /**
+     * Submit an action to execute, with the default priority
+     * @param action The action
+     */
+    void submit(Action action);
+
+    /**
+     * Return the number of actions waiting for a worker
+     * @return The queue size
+     */
+    int getQueueSize();
+
+    /**
+     * Return the time the last started action waited in the queue
+     * @return The queueing delay, in ns
+     */
+    long getQueueDelay();
+
+    /**
+     * Stop the pool. Pending actions may not be executed
+     */
+    void stop();
+}
@@ -0,0 +1,21 @@
+package fr.vuzi.thread;
+
+/**
+ * Action waiting in a thread pool queue, with its priority and submission time
+ */
+class QueuedAction implements Comparable<QueuedAction> {
+
+    final int priority;
+    final Action action;
+    final long queuedAt = System.nanoTime();
+
+    QueuedAction(int priority, Action action) {
+        this.priority = priority;
+        this.action = action;
+    }
+
+    @Override
+    public int compareTo(QueuedAction o) {
+        return Integer.compare(priority, o.priority);
+    }
+}
@@ -0,0 +1,13 @@
+package fr.vuzi.thread;
+
+/**
+ * Thrown when an action is submitted to a full thread pool
+ */
+public class RejectedActionException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RejectedActionException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,16 @@
+package fr.vuzi.thread;
+
+/**
+ * Behaviour of a bounded thread pool when its queue is full
+ */
+public enum RejectionPolicy {
+    /**
+     * The submission throws a RejectedActionException
+     */
+    ABORT,
+
+    /**
+     * The action is executed by the submitting thread, slowing the submissions down
+     */
+    CALLER_RUNS
+}
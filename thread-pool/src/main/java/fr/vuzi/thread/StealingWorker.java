@@ -0,0 +1,84 @@
+package fr.vuzi.thread;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Worker of the work stealing thread pool, owning one deque per priority lane. The owner takes its actions from the
+ * head of its deques, while the other workers steal from the tail
+ */
+public class StealingWorker implements Runnable {
+
+    private static final ThreadLocal<StealingWorker> currentWorker = new ThreadLocal<>();
+
+    // Number of scans before parking, as parking and unparking a thread costs more than a short action. Spinning is
+    // useless with a single core
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 32 : 0;
+
+    final WorkStealingThreadPool threadPool;
+    final int index;
+    final ConcurrentLinkedDeque<QueuedAction>[] lanes;
+    final AtomicBoolean parked = new AtomicBoolean(false);
+
+    Thread thread;
+
+    @SuppressWarnings("unchecked")
+    public StealingWorker(WorkStealingThreadPool threadPool, int index) {
+        this.threadPool = threadPool;
+        this.index = index;
+        this.lanes = (ConcurrentLinkedDeque<QueuedAction>[])
+                new ConcurrentLinkedDeque<?>[WorkStealingThreadPool.LANES];
+
+        for(int i = 0; i < lanes.length; i++)
+            lanes[i] = new ConcurrentLinkedDeque<>();
+    }
+
+    /**
+     * Return the worker of the current thread, if it belongs to the provided pool
+     * @param threadPool The thread pool
+     * @return The worker, or null if the current thread is not one of the pool workers
+     */
+    static StealingWorker current(WorkStealingThreadPool threadPool) {
+        StealingWorker worker = currentWorker.get();
+        return worker != null && worker.threadPool == threadPool ? worker : null;
+    }
+
+    @Override
+    public void run() {
+        currentWorker.set(this);
+
+        while (!threadPool.shouldStop) {
+            Action action = threadPool.next(this);
+
+            for (int i = 0; action == null && i < SPINS; i++) {
+                Thread.yield();
+                action = threadPool.next(this);
+            }
+
+            if (action == null) {
+                // Register as idle, then check again to not miss an action submitted in between
+                parked.set(true);
+                threadPool.idleWorkers.add(this);
+
+                action = threadPool.next(this);
+
+                if (action == null) {
+                    while (parked.get() && !threadPool.shouldStop)
+                        LockSupport.park(this);
+                    continue;
+                }
+
+                // If a submitter already woke this worker up, pass the signal to another one
+                if (!parked.compareAndSet(true, false))
+                    threadPool.signalOne();
+            }
+
+            try {
+                action.apply();
+            } catch (RuntimeException e) {
+                Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+            }
+        }
+    }
+}
@@ -4,16 +4,38 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.PriorityQueue;
 
-public class ThreadPool {
+/**
+ * Thread pool sharing a single priority queue between all its workers. The queue can be bounded, the actions
+ * submitted to a full queue being handled according to the rejection policy
+ */
+public class ThreadPool implements IThreadPool {
 
     final Object lock = new Object();
 
     boolean shouldStop = false;
 
-    PriorityQueue<PrioritizedAction> actions = new PriorityQueue<>();
+    PriorityQueue<QueuedAction> actions = new PriorityQueue<>();
     List<Worker> workers = new ArrayList<>();
 
+    private final int capacity;
+    private final RejectionPolicy rejectionPolicy;
+
+    private volatile long queueDelay = 0;
+
     public ThreadPool(int nb) {
+        this(nb, 0, RejectionPolicy.ABORT);
+    }
+
+    /**
+     * Create a bounded thread pool
+     * @param nb The number of workers
+     * @param capacity The max number of waiting actions, or 0 for no limit
+     * @param rejectionPolicy The behaviour when the queue is full
+     */
+    public ThreadPool(int nb, int capacity, RejectionPolicy rejectionPolicy) {
+        this.capacity = capacity;
+        this.rejectionPolicy = rejectionPolicy;
+
         for(int i = 0; i < nb; i++) {
             Worker w = new Worker(this);
             Thread t = new Thread(w);
@@ -22,19 +44,30 @@ public class ThreadPool {
         }
     }
 
+    @Override
     public void submit(int priority, Action action) {
-        submit(new PrioritizedAction(priority, action));
+        submit(new QueuedAction(priority, action));
     }
 
+    @Override
     public void submit(Action action) {
-        submit(new PrioritizedAction(1, action));
+        submit(new QueuedAction(1, action));
     }
 
-    private void submit(PrioritizedAction action) {
+    private void submit(QueuedAction action) {
         synchronized (lock) {
-            actions.add(action);
-            lock.notifyAll();
+            if(capacity <= 0 || actions.size() < capacity) {
+                actions.add(action);
+                lock.notifyAll();
+                return;
+            }
         }
+
+        // Full queue
+        if(rejectionPolicy == RejectionPolicy.CALLER_RUNS)
+            action.action.apply();
+        else
+            throw new RejectedActionException("Thread pool queue full");
     }
 
     public Action consume() {
@@ -45,34 +78,33 @@ public class ThreadPool {
                 } catch (InterruptedException e) {}
             }
 
-            PrioritizedAction pAction = actions.poll();
-            return pAction != null ? pAction.action : null;
+            QueuedAction queuedAction = actions.poll();
+            if(queuedAction == null)
+                return null;
+
+            queueDelay = System.nanoTime() - queuedAction.queuedAt;
+            return queuedAction.action;
         }
     }
 
-    public void stop() {
+    @Override
+    public int getQueueSize() {
         synchronized (lock) {
-            shouldStop = true;
-
-            lock.notifyAll();
+            return actions.size();
         }
     }
 
-    private class PrioritizedAction implements Comparable {
-        private int priority;
-        private Action action;
+    @Override
+    public long getQueueDelay() {
+        return queueDelay;
+    }
 
-        public PrioritizedAction(int priority, Action action) {
-            this.priority = priority;
-            this.action = action;
-        }
+    @Override
+    public void stop() {
+        synchronized (lock) {
+            shouldStop = true;
 
-        @Override
-        public int compareTo(Object o) {
-            if(o instanceof PrioritizedAction)
-                return priority - ((PrioritizedAction) o).priority;
-            else
-                return 1;
+            lock.notifyAll();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,125 @@
+package fr.vuzi.thread;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool starting a new thread per action, instead of using a fixed number of workers. Virtual threads are used
+ * when available (Java 21 and later) : they are cheap enough to block on I/O, so blocking code can scale to a large
+ * number of concurrent actions. Otherwise, platform threads are used. As every action starts immediately, priorities
+ * are ignored, and the pool can only be bounded by its number of running actions
+ */
+public class VirtualThreadPool implements IThreadPool {
+
+    private final ThreadFactory factory;
+    private final boolean virtual;
+
+    private final int capacity;
+    private final RejectionPolicy rejectionPolicy;
+    private final AtomicInteger running = new AtomicInteger();
+
+    private volatile boolean shouldStop = false;
+
+    public VirtualThreadPool(String name) {
+        this(name, 0, RejectionPolicy.ABORT);
+    }
+
+    /**
+     * Create a bounded thread pool
+     * @param name The thread name prefix
+     * @param capacity The max number of running actions, or 0 for no limit
+     * @param rejectionPolicy The behaviour when the pool is full
+     */
+    public VirtualThreadPool(String name, int capacity, RejectionPolicy rejectionPolicy) {
+        this.capacity = capacity;
+        this.rejectionPolicy = rejectionPolicy;
+
+        ThreadFactory virtualFactory = createVirtualFactory(name);
+
+        if(virtualFactory != null) {
+            this.factory = virtualFactory;
+            this.virtual = true;
+        } else {
+            AtomicLong count = new AtomicLong();
+
+            this.factory = r -> new Thread(r, name + count.getAndIncrement());
+            this.virtual = false;
+        }
+    }
+
+    /**
+     * Create a factory of virtual threads. The API is only defined since Java 21, so it is looked up by reflection
+     * @param name The thread name prefix
+     * @return The factory, or null if virtual threads are not available
+     */
+    private static ThreadFactory createVirtualFactory(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name, 0L);
+
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return true if the actions run on virtual threads, or false if they run on platform threads
+     * @return True if virtual threads are used
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    @Override
+    public void submit(int priority, Action action) {
+        if(shouldStop)
+            return;
+
+        if(running.incrementAndGet() > capacity && capacity > 0) {
+            running.decrementAndGet();
+
+            if(rejectionPolicy == RejectionPolicy.CALLER_RUNS) {
+                action.apply();
+                return;
+            }
+
+            throw new RejectedActionException("Thread pool full");
+        }
+
+        factory.newThread(() -> {
+            try {
+                action.apply();
+            } finally {
+                running.decrementAndGet();
+            }
+        }).start();
+    }
+
+    @Override
+    public void submit(Action action) {
+        submit(1, action);
+    }
+
+    /**
+     * Return 0, as the actions are never queued
+     * @return The queue size
+     */
+    @Override
+    public int getQueueSize() {
+        return 0;
+    }
+
+    @Override
+    public long getQueueDelay() {
+        return 0;
+    }
+
+    @Override
+    public void stop() {
+        shouldStop = true;
+    }
+}
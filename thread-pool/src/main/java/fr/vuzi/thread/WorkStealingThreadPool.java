@@ -0,0 +1,163 @@
+package fr.vuzi.thread;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread pool where each worker owns its own deques, one per priority lane. Idle workers steal actions from the
+ * others, and a submission only wakes up a single idle worker. No lock is shared between the workers. The number of
+ * waiting actions can be bounded, the actions submitted to a full pool being handled according to the rejection policy
+ */
+public class WorkStealingThreadPool implements IThreadPool {
+
+    /**
+     * Number of priority lanes. Priorities are clamped between 0 (executed first) and LANES - 1
+     */
+    public static final int LANES = 4;
+
+    volatile boolean shouldStop = false;
+
+    final StealingWorker[] workers;
+    final Queue<StealingWorker> idleWorkers = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final int capacity;
+    private final RejectionPolicy rejectionPolicy;
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile long queueDelay = 0;
+
+    public WorkStealingThreadPool(int nb) {
+        this(nb, 0, RejectionPolicy.ABORT);
+    }
+
+    /**
+     * Create a bounded thread pool
+     * @param nb The number of workers
+     * @param capacity The max number of waiting actions, or 0 for no limit
+     * @param rejectionPolicy The behaviour when the pool is full
+     */
+    public WorkStealingThreadPool(int nb, int capacity, RejectionPolicy rejectionPolicy) {
+        this.capacity = capacity;
+        this.rejectionPolicy = rejectionPolicy;
+
+        workers = new StealingWorker[nb];
+
+        for(int i = 0; i < nb; i++)
+            workers[i] = new StealingWorker(this, i);
+
+        for(StealingWorker w : workers) {
+            Thread t = new Thread(w);
+            w.thread = t;
+            t.start();
+        }
+    }
+
+    @Override
+    public void submit(int priority, Action action) {
+        int lane = Math.max(0, Math.min(LANES - 1, priority));
+
+        if(pending.incrementAndGet() > capacity && capacity > 0) {
+            pending.decrementAndGet();
+
+            if(rejectionPolicy == RejectionPolicy.CALLER_RUNS) {
+                action.apply();
+                return;
+            }
+
+            throw new RejectedActionException("Thread pool queue full");
+        }
+
+        // Actions submitted by a worker stay local, others are spread over the workers
+        StealingWorker target = StealingWorker.current(this);
+        if(target == null)
+            target = workers[(next.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+
+        target.lanes[lane].addLast(new QueuedAction(lane, action));
+
+        signalOne();
+    }
+
+    @Override
+    public void submit(Action action) {
+        submit(1, action);
+    }
+
+    /**
+     * Wake up one idle worker, if any
+     */
+    void signalOne() {
+        StealingWorker w;
+
+        while((w = idleWorkers.poll()) != null) {
+            if(w.parked.compareAndSet(true, false)) {
+                LockSupport.unpark(w.thread);
+                return;
+            }
+            // Outdated entry, the worker found an action by itself
+        }
+    }
+
+    /**
+     * Find the next action for the provided worker : its own actions first, then the other workers' ones, lane by
+     * lane so priorities are respected across workers
+     * @param worker The worker looking for an action
+     * @return The action, or null if none is pending
+     */
+    Action next(StealingWorker worker) {
+        for(int lane = 0; lane < LANES; lane++) {
+            QueuedAction action = worker.lanes[lane].pollFirst();
+            if(action != null)
+                return taken(action);
+
+            for(int i = 1; i < workers.length; i++) {
+                StealingWorker victim = workers[(worker.index + i) % workers.length];
+
+                action = victim.lanes[lane].pollLast();
+                if(action != null)
+                    return taken(action);
+            }
+        }
+
+        return null;
+    }
+
+    private Action taken(QueuedAction action) {
+        pending.decrementAndGet();
+        queueDelay = System.nanoTime() - action.queuedAt;
+
+        return action.action;
+    }
+
+    /**
+     * Return the number of actions waiting to be executed. The value is an estimation, as the deques are modified
+     * concurrently
+     * @return The number of pending actions
+     */
+    public int getPendingActions() {
+        return pending.get();
+    }
+
+    @Override
+    public int getQueueSize() {
+        return pending.get();
+    }
+
+    @Override
+    public long getQueueDelay() {
+        return queueDelay;
+    }
+
+    @Override
+    public void stop() {
+        shouldStop = true;
+
+        for(StealingWorker w : workers) {
+            w.parked.set(false);
+            LockSupport.unpark(w.thread);
+        }
+    }
+}